@@ -0,0 +1,107 @@
+/**
+ * BackgroundSaver.java
+ *
+ * Saves boards on a background thread so the window never waits for the
+ * disk. Only the raw state of the board, its flag words and characters,
+ * is copied under its monitor; the indexes a board needs are rebuilt from
+ * that copy and the copy is written after the lock is released, so neither
+ * the game loop nor the GUI is held up by either.
+ *
+ * Saves asked for while another is still queued are coalesced: only the
+ * latest board is written. Each save goes to a temporary file that then
+ * replaces the target, so an interrupted save never leaves half a board.
+ */
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+
+public class BackgroundSaver
+{
+  private final String outputBoard;          // Where every save goes
+  private final Consumer<String> report;     // Told how each save went
+  private final ScheduledExecutorService executor;
+  private final AtomicReference<Board> pending = new AtomicReference<>();
+
+  /*
+   * Constructor
+   *
+   * Purpose:    Prepare a saver with its own I/O thread.
+   * Parameter:  The file to save to, in the binary format if it ends in
+   *             Board.BINARY_EXTENSION, and a callback for the outcome of
+   *             every save. The callback runs on the I/O thread.
+   */
+  public BackgroundSaver(String outputBoard, Consumer<String> report)
+  {
+    this.outputBoard = outputBoard;
+    this.report = report;
+    executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "board-saver");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  // Save the board soon. Returns at once; safe to call from any thread.
+  public void save(Board board)
+  {
+    // Only the first request since the last save schedules a write
+    if(pending.getAndSet(board) == null)
+      executor.execute(this::saveLatest);
+  }
+
+  // Save whatever board the supplier returns every given number of seconds
+  public void autosave(Supplier<Board> boards, int seconds)
+  {
+    executor.scheduleAtFixedRate(() -> save(boards.get()), seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  // Stop autosaving and wait for a save in progress to finish
+  public void shutdown()
+  {
+    executor.shutdown();
+    try{
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /*
+   * Name:      saveLatest
+   * Purpose:   Snapshot the latest board asked for and write it out.
+   */
+  private void saveLatest()
+  {
+    Board board = pending.getAndSet(null);
+    if(board == null)
+      return;
+    Board.Snapshot raw;
+    synchronized(board){
+      raw = board.snapshot();
+    }
+    Board snapshot = raw.toBoard();
+
+    Path target = Paths.get(outputBoard).toAbsolutePath();
+    Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+    try{
+      if(outputBoard.endsWith(Board.BINARY_EXTENSION))
+        snapshot.saveBoardBinary(temp.toString());
+      else
+        snapshot.saveBoard(temp.toString());
+      try{
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+      }catch(AtomicMoveNotSupportedException e){
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+      report.accept("Saved Board to " + outputBoard);
+    }catch(IOException e){
+      report.accept("IOException while saving to " + outputBoard + ": " + e.getMessage());
+    }
+  }
+}
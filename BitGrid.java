@@ -0,0 +1,162 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * A square grid of flags packed 64 to a long.
+ *
+ * Every row starts on a fresh word, so a row can be read or written as a
+ * run of whole words and no two rows ever share a word. Words are
+ * addressed by row and by their place in the row, the word holding
+ * columns word * 64 to word * 64 + 63.
+ *
+ * Grids of up to DENSE_LIMIT cells keep every word in one array; larger
+ * ones are chunked and only store the parts where some flag was ever set,
+ * so memory follows the explored area rather than the board. create
+ * picks between them; both write the same words to a file.
+ */
+public abstract class BitGrid {
+
+    // Largest grid, in cells, that create stores densely
+    public static final long DENSE_LIMIT = 1L << 24;
+
+    // Largest piece of a file mapped at once by readFrom
+    protected static final int MAP_WINDOW = 1 << 30;
+
+    protected final int size;
+    protected final int wordsPerRow;
+
+    // Receives words of a grid; may change the grid it was handed by
+    public interface WordVisitor {
+        void visit(int row, int word, long bits);
+    }
+
+    protected BitGrid(int size) {
+        this.size = size;
+        this.wordsPerRow = (size + 63) >>> 6;
+    }
+
+    public static BitGrid create(int size) {
+        if ((long) size * size <= DENSE_LIMIT)
+            return new DenseBitGrid(size);
+        return new ChunkedBitGrid(size);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getWordsPerRow() {
+        return wordsPerRow;
+    }
+
+    public abstract boolean get(int row, int col);
+
+    public abstract void set(int row, int col);
+
+    public abstract void clear(int row, int col);
+
+    public abstract long getWord(int row, int word);
+
+    public abstract void setWord(int row, int word, long bits);
+
+    // Words actually held in memory
+    public abstract long getStoredWords();
+
+    // Every stored word; words that are not stored are all clear
+    public abstract void forEachWord(WordVisitor visitor);
+
+    public abstract BitGrid copy();
+
+    // Make this grid equal to another of the same size and kind
+    public abstract void copyFrom(BitGrid other);
+
+    // Number of flags that are set, counted a word at a time
+    public long cardinality() {
+        long[] count = new long[1];
+        forEachWord((row, word, bits) -> count[0] += Long.bitCount(bits));
+        return count[0];
+    }
+
+    /*
+     * Hash of every set flag, for comparing grids without keeping a copy.
+     * Clear words add nothing, so dense and chunked grids with the same
+     * flags hash alike.
+     */
+    public long hash() {
+        long[] hash = new long[1];
+        forEachWord((row, word, bits) -> {
+            if (bits != 0) {
+                long h = ((long) row * wordsPerRow + word) * 0x9E3779B97F4A7C15L ^ bits;
+                hash[0] += (h ^ (h >>> 29)) * 0xBF58476D1CE4E5B9L;
+            }
+        });
+        return hash[0];
+    }
+
+    /*
+     * Visit every word where this grid and another of the same size differ,
+     * with the bits that differ. The visitor may change this grid.
+     */
+    public void forEachDifference(BitGrid other, WordVisitor visitor) {
+        forEachWord((row, word, bits) -> {
+            long diff = bits ^ other.getWord(row, word);
+            if (diff != 0)
+                visitor.visit(row, word, diff);
+        });
+        other.forEachWord((row, word, bits) -> {
+            if (bits != 0 && !isStored(row, word))
+                visitor.visit(row, word, bits);
+        });
+    }
+
+    // Whether forEachWord covers the word
+    protected abstract boolean isStored(int row, int word);
+
+    /*
+     * Write every word, row by row, through the given buffer. The buffer is
+     * flushed to the channel whenever it fills up and is left partly filled.
+     */
+    public void writeTo(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        for (int row = 0; row < size; row++) {
+            for (int word = 0; word < wordsPerRow; word++) {
+                if (buffer.remaining() < 8)
+                    flush(channel, buffer);
+                buffer.putLong(getWord(row, word));
+            }
+        }
+    }
+
+    // Write out whatever the buffer holds and make it empty again
+    public static void flush(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /*
+     * Fill the words from a file written by writeTo, starting at the given
+     * offset. The file is memory mapped a window at a time so grids bigger
+     * than a single mapping still load. Clear words are skipped.
+     *
+     * @return the offset just past the words
+     */
+    public long readFrom(FileChannel channel, long position) throws IOException {
+        long total = (long) size * wordsPerRow;
+        long next = 0;
+        while (next < total) {
+            int count = (int) Math.min(MAP_WINDOW / 8, total - next);
+            LongBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) count * 8)
+                .asLongBuffer();
+            for (int i = 0; i < count; i++) {
+                long bits = window.get(i);
+                if (bits != 0)
+                    setWord((int) ((next + i) / wordsPerRow), (int) ((next + i) % wordsPerRow), bits);
+            }
+            position += (long) count * 8;
+            next += count;
+        }
+        return position;
+    }
+}
@@ -1,23 +1,57 @@
 import java.lang.StringBuilder;
 import java.util.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 
 /**
  * @author      Bairui Chen <chenbr07@outlook.com>
  */
 public class Board{
 
+    // Files ending in this are saved in the binary format
+    public static final String BINARY_EXTENSION = ".pacb";
+
+    // Binary format: magic, version, then the header fields below
+    static final int BINARY_MAGIC = 0x50414342; // "PACB"
+    private static final int BINARY_VERSION = 1;
+    private static final int BINARY_WALLS_VERSION = 2; // Walls follow the cherries
+    private static final int BINARY_HEADER_BYTES = 32;
+    private static final int BINARY_GHOST_BYTES = 10;
+
     // FIELD
     public final int GRID_SIZE;
 
-    private char[][] grid;          // String Representation of Pac-man Game Board
-    private boolean[][] visited;    // Record of where Pac-man has visited
-    private boolean[][] cherryMap;  // Map of cherries generated
-    private PacCharacter pacman;    // Pac-man that user controls
-    private PacCharacter[] ghosts;  // 4 Ghosts that controlled by the program
+    private char[][] grid;          // String Representation, built on first getGrid()
+    private BitGrid visited;        // Record of where Pac-man has visited
+    private BitGrid cherryMap;      // Map of cherries generated
+    private Maze maze;              // Walls and move tables, null on an open board
+    private CharacterStore characters; // Pac-man at PACMAN, ghosts after him
+    private DistanceField field;    // Distance to Pac-man shared by every ghost
+    private OccupancyIndex occupancy; // Which ghosts stand on which cell
     private int score;              // Score Recorded for the gamer
     private int moveCount;
     private int cherryInterval = 3;
+    private SplittableRandom random; // Decides where cherries appear
+    private FreeCellSet freeCells;  // Cells without a cherry, small boards only
+    private long remainingDots;     // Cells Pac-man has not visited yet
+    private long cherryCount;       // Cherries on the board
+    private long[] changedCells = new long[16]; // Cells touched by the last move
+    private int changedCount;
+    private MoveJournal journal;    // null until enableJournal is called
+    private int checkpointInterval; // Moves between full checkpoints, 0 for none
+    private ArrayList<Checkpoint> checkpoints;
+    private boolean instrumented;   // move feeds Metrics; only the board being played
+
+    // Ghost appearances, handed out in turn
+    private static final char[] GHOST_APPEARANCES = { 'D', 'L', 'R', 'U' };
+
+    // Index of Pac-man in the character store; ghosts are 1 and up
+    private static final int PACMAN = 0;
+
+    // Cells a board without a FreeCellSet looks at for a cherry once guessing fails
+    private static final int MAX_CHERRY_SCAN = 1 << 16;
 
 
     /*
@@ -29,112 +63,333 @@ public class Board{
      *
      */
     public Board(int size) {
+        this(size, 4);
+    }
+
+    public Board(int size, int ghostCount) {
+        this(size, ghostCount, new SplittableRandom());
+    }
+
+    /*
+     * Constructor
+     *
+     * <p> Description: Construct the game with a square game board and any
+     *                  number of ghosts. The first four start in the corners,
+     *                  the rest are spread evenly along the edges.
+     *
+     * @param:  The side length of the square game board
+     * @param:  The number of ghosts
+     * @param:  Source of randomness; a seeded one makes the game repeatable
+     *
+     */
+    public Board(int size, int ghostCount, SplittableRandom random) {
 
         // Initialize instance variables
         GRID_SIZE = size;
-        grid = new char[GRID_SIZE][GRID_SIZE]; // Character Representation of the game
-        visited = new boolean[GRID_SIZE][GRID_SIZE];
-        cherryMap = new boolean[GRID_SIZE][GRID_SIZE];
+        this.random = random;
+        visited = BitGrid.create(GRID_SIZE);
+        cherryMap = BitGrid.create(GRID_SIZE);
         score = 0;
         moveCount = 0;
 
-        pacman = new PacCharacter(GRID_SIZE/2, GRID_SIZE/2, 'P');
-        ghosts = new PacCharacter[4];
-        ghosts[0] = new PacCharacter(          0,           0, 'D'); // Inky
-        ghosts[1] = new PacCharacter(          0, GRID_SIZE-1, 'L'); // Pinky
-        ghosts[2] = new PacCharacter(GRID_SIZE-1,           0, 'R'); // Blinky
-        ghosts[3] = new PacCharacter(GRID_SIZE-1, GRID_SIZE-1, 'U'); // Clyde
+        characters = new CharacterStore(ghostCount + 1);
+        characters.add(GRID_SIZE/2, GRID_SIZE/2, 'P');
+        int perimeter = 4 * (GRID_SIZE - 1);
+        for (int i = 0; i < ghostCount; i++) {
+            char appearance = GHOST_APPEARANCES[i % GHOST_APPEARANCES.length];
+            if (i == 0) characters.add(          0,           0, 'D'); // Inky
+            else if (i == 1) characters.add(          0, GRID_SIZE-1, 'L'); // Pinky
+            else if (i == 2) characters.add(GRID_SIZE-1,           0, 'R'); // Blinky
+            else if (i == 3) characters.add(GRID_SIZE-1, GRID_SIZE-1, 'U'); // Clyde
+            else addEdgeGhost((int) ((long) i * perimeter / ghostCount), appearance);
+        }
 
         setVisited(GRID_SIZE/2, GRID_SIZE/2);
+        indexCharacters();
+    }
 
-        refreshGrid(); // Fill the grid with appropriate characters
+    // A ghost on the given cell of the edge, counted clockwise from the top left corner
+    private void addEdgeGhost(int step, char appearance) {
+        int side = GRID_SIZE - 1;
+        if (step < side)
+            characters.add(0, step, appearance);
+        else if (step < 2 * side)
+            characters.add(step - side, side, appearance);
+        else if (step < 3 * side)
+            characters.add(side, 3 * side - step, appearance);
+        else
+            characters.add(4 * side - step, 0, appearance);
     }
 
 
 
+    /*
+     * Load a board saved by saveBoard or saveBoardBinary. The format is
+     * recognised from the first bytes of the file, not its name, and text
+     * boards may be gzip compressed. A file that does not fit its format
+     * throws an IOException saying where.
+     */
     public Board(String inputBoard) throws IOException {
-        // Create a scanner to scan the inputBoard.
-        Scanner input = new Scanner(new File(inputBoard));
+        random = new SplittableRandom();
+        Path path = Paths.get(inputBoard);
+        if (isBinaryBoard(path)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer header = readBinaryHeader(channel, 0);
+                GRID_SIZE = header.getInt();
+                readBinary(channel, 0, header);
+            }
+            return;
+        }
 
-        // First integer in inputBoard is GRID_SIZE.
-        GRID_SIZE = input.nextInt();
-        // Second integer in inputBoard is score.
-        score = input.nextInt();
-        // Third integer in inputBoard is moveCount.
-        moveCount = input.nextInt();
+        // Rows are parsed in parallel; see BoardLoader
+        BoardLoader.Parts parts = BoardLoader.read(path);
+        GRID_SIZE = parts.size;
+        score = parts.score;
+        moveCount = parts.moveCount;
+        visited = parts.visited;
+        cherryMap = parts.cherryMap;
+        characters = parts.characters;
+        setWalls(parts.walls);
 
-        grid = new char[GRID_SIZE][GRID_SIZE];
-        visited = new boolean[GRID_SIZE][GRID_SIZE];
-        cherryMap = new boolean[GRID_SIZE][GRID_SIZE];
+        // Ghosts sharing a cell were saved as a single character, so the
+        // board may come back with fewer ghosts than it was saved with
+        indexCharacters();
+    }
 
-        String line = input.nextLine(); // Skip current line (moveCount line)
 
-        char rep;
-        ghosts = new PacCharacter[4];
-        for ( int rowIndex = 0; rowIndex < GRID_SIZE; rowIndex++ )
-        {
-            line = input.nextLine();
-            for ( int colIndex = 0; colIndex < GRID_SIZE; colIndex++ ) {
-                rep = line.charAt(colIndex);
-                grid[rowIndex][colIndex] = rep;
-
-                switch (rep) {
-                    case 'P':
-                        setVisited(rowIndex, colIndex);
-                        pacman = new PacCharacter(rowIndex, colIndex, 'P');
-                        break;
-                    case 'D':
-                        for (int i = 0; i < ghosts.length; i++) {
-                            if (ghosts[i] == null) {
-                                ghosts[i] = new PacCharacter(rowIndex, colIndex, 'D');
-                                break;
-                            }
-                        }
-                        break;
-                    case 'L':
-                        for (int i = 0; i < ghosts.length; i++) {
-                            if (ghosts[i] == null) {
-                                ghosts[i] = new PacCharacter(rowIndex, colIndex, 'L');
-                                break;
-                            }
-                        }
-                        break;
-                    case 'R':
-                        for (int i = 0; i < ghosts.length; i++) {
-                            if (ghosts[i] == null) {
-                                ghosts[i] = new PacCharacter(rowIndex, colIndex, 'R');
-                                break;
-                            }
-                        }
-                        break;
-                    case 'U':
-                        for (int i = 0; i < ghosts.length; i++) {
-                            if (ghosts[i] == null) {
-                                ghosts[i] = new PacCharacter(rowIndex, colIndex, 'U');
-                                break;
-                            }
-                        }
-                        break;
-                    case 'C':
-                        cherryMap[rowIndex][colIndex] = true;
-                        break;
-                    case 'X':
-                        pacman = new PacCharacter(rowIndex, colIndex, 'P');
-                        for (int i = 0; i < ghosts.length; i++) {
-                            if (ghosts[i] == null) {
-                                ghosts[i] = new PacCharacter(rowIndex, colIndex, 'R');
-                                break;
-                            }
-                        }
-                        break;
-                    case ' ':
-                        setVisited(rowIndex, colIndex);
-                        break;
+    private static boolean isBinaryBoard(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] magic = new byte[4];
+            return in.read(magic) == 4 && ByteBuffer.wrap(magic).getInt() == BINARY_MAGIC;
+        }
+    }
+
+    /*
+     * Load a binary board that starts at the given offset of a larger file,
+     * such as one embedded in a replay log.
+     */
+    public Board(FileChannel channel, long offset) throws IOException {
+        random = new SplittableRandom();
+        ByteBuffer header = readBinaryHeader(channel, offset);
+        GRID_SIZE = header.getInt();
+        readBinary(channel, offset, header);
+    }
+
+    // The header of a binary board, positioned just past the version
+    private static ByteBuffer readBinaryHeader(FileChannel channel, long offset) throws IOException {
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, offset, BINARY_HEADER_BYTES);
+        int magic = header.getInt();
+        int version = header.getInt();
+        if (magic != BINARY_MAGIC || (version != BINARY_VERSION && version != BINARY_WALLS_VERSION))
+            throw new IOException("Not a supported binary board at offset " + offset);
+        return header;
+    }
+
+    // Everything after the size field of a binary board
+    private void readBinary(FileChannel channel, long offset, ByteBuffer header) throws IOException {
+        score = header.getInt();
+        moveCount = header.getInt();
+        int pacmanRow = header.getInt();
+        int pacmanCol = header.getInt();
+        int ghostCount = header.getInt();
+
+        // Check the header against the file before trusting any of it
+        boolean walled = header.getInt(4) == BINARY_WALLS_VERSION;
+        long length = binaryLength(GRID_SIZE, ghostCount, walled);
+        if (GRID_SIZE < 1)
+            throw new IOException("Binary board has size " + GRID_SIZE);
+        if (ghostCount < 0 || ghostCount > BoardLoader.MAX_GHOSTS)
+            throw new IOException("Binary board has " + ghostCount + " ghosts; at most "
+                                  + BoardLoader.MAX_GHOSTS + " are allowed");
+        if (!isOnBoard(pacmanRow, pacmanCol))
+            throw new IOException("Binary board has Pac-man off the board at " + pacmanRow + ", " + pacmanCol);
+        if (channel.size() - offset < length)
+            throw new IOException("Binary board is truncated: " + (channel.size() - offset)
+                                  + " bytes, expected " + length);
+        characters = new CharacterStore(ghostCount + 1);
+        characters.add(pacmanRow, pacmanCol, 'P');
+
+        long position = offset + BINARY_HEADER_BYTES;
+        ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                         (long) ghostCount * BINARY_GHOST_BYTES);
+        for (int i = 0; i < ghostCount; i++) {
+            int row = records.getInt();
+            int col = records.getInt();
+            if (!isOnBoard(row, col))
+                throw new IOException("Binary board has ghost " + (i + 1) + " off the board at "
+                                      + row + ", " + col);
+            characters.add(row, col, records.getChar());
+        }
+        position += (long) ghostCount * BINARY_GHOST_BYTES;
+
+        visited = BitGrid.create(GRID_SIZE);
+        cherryMap = BitGrid.create(GRID_SIZE);
+        position = visited.readFrom(channel, position);
+        position = cherryMap.readFrom(channel, position);
+        if (header.getInt(4) == BINARY_WALLS_VERSION) {
+            BitGrid walls = BitGrid.create(GRID_SIZE);
+            walls.readFrom(channel, position);
+            setWalls(walls);
+        }
+        indexCharacters();
+    }
+
+    // Bytes of a binary board with the given size, ghosts and walls
+    private static long binaryLength(int size, int ghostCount, boolean walled) {
+        long gridBytes = 8L * size * ((size + 63) >>> 6);
+        return BINARY_HEADER_BYTES + (long) ghostCount * BINARY_GHOST_BYTES
+            + (walled ? 3 : 2) * gridBytes;
+    }
+
+    /*
+     * An independent copy of the game as it stands: flags, characters,
+     * score and counters, but no char view and no journal. The copy shares
+     * this board's SplittableRandom, which is not thread safe: give the
+     * copy one of its own with setRandom before playing it on another thread.
+     *
+     * The indexes are cloned rather than rebuilt, so nothing is rescanned
+     * cell by cell.
+     */
+    public Board copy() {
+        return new Board(this, true);
+    }
+
+    /*
+     * The raw state of the game, its flag words, characters and counters,
+     * copied without any of the indexes built from them. It is quick to
+     * take while holding the board's monitor; Snapshot.toBoard builds the
+     * rest afterwards, on whatever thread calls it.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(new Board(this, false));
+    }
+
+    public static final class Snapshot {
+        private final Board board;      // Not indexed until toBoard
+        private boolean indexed;
+
+        private Snapshot(Board board) {
+            this.board = board;
+        }
+
+        // The snapshot as a board of its own; the same board on every call
+        public synchronized Board toBoard() {
+            if (!indexed) {
+                board.indexCharacters();
+                indexed = true;
+            }
+            return board;
+        }
+    }
+
+    /*
+     * Copy the raw state of another board and, if asked to, clone its
+     * indexes. Without them indexCharacters must run before the copy is used.
+     */
+    private Board(Board other, boolean withIndexes) {
+        GRID_SIZE = other.GRID_SIZE;
+        random = other.random;
+        visited = other.visited.copy();
+        cherryMap = other.cherryMap.copy();
+        maze = other.maze;
+        characters = other.characters.copy();
+        score = other.score;
+        moveCount = other.moveCount;
+        cherryInterval = other.cherryInterval;
+        if (withIndexes) {
+            occupancy = other.occupancy.copy();
+            freeCells = other.freeCells == null ? null : other.freeCells.copy();
+            field = maze != null ? new MazeDistanceField(maze) : new DistanceField(GRID_SIZE);
+            copyCounters(other);
+        }
+    }
+
+    /*
+     * Make this board the same game as another one of the same size, maze
+     * and number of ghosts, reusing this board's arrays, so a board kept
+     * for scratch work can be reset again and again without allocating.
+     * The journal, if there is one, starts over empty.
+     *
+     * @return false, changing nothing, if the boards do not match
+     */
+    public boolean copyFrom(Board other) {
+        if (other.GRID_SIZE != GRID_SIZE || other.maze != maze
+            || other.characters.size() != characters.size()
+            || (other.freeCells == null) != (freeCells == null))
+            return false;
+        visited.copyFrom(other.visited);
+        cherryMap.copyFrom(other.cherryMap);
+        characters.copyFrom(other.characters);
+        occupancy.copyFrom(other.occupancy);
+        if (freeCells != null)
+            freeCells.copyFrom(other.freeCells);
+        copyCounters(other);
+        changedCount = 0;
+        if (journal != null) {
+            journal.clear();
+            checkpoints.clear();
+            if (checkpointInterval > 0)
+                checkpoints.add(new Checkpoint(this, 0));
+        }
+        if (grid != null)
+            refreshGrid();
+        return true;
+    }
+
+    private void copyCounters(Board other) {
+        score = other.score;
+        moveCount = other.moveCount;
+        cherryInterval = other.cherryInterval;
+        remainingDots = other.remainingDots;
+        cherryCount = other.cherryCount;
+        field.update(characters.getRow(PACMAN), characters.getCol(PACMAN));
+    }
+
+    /*
+     * Build the maze from the walls of a loaded board, or leave the board
+     * open if there are none.
+     */
+    private void setWalls(BitGrid walls) throws IOException {
+        if (walls.cardinality() == 0)
+            return;
+        try {
+            maze = new Maze(walls);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private void indexCharacters() {
+        field = maze != null ? new MazeDistanceField(maze) : new DistanceField(GRID_SIZE);
+        field.update(characters.getRow(PACMAN), characters.getCol(PACMAN));
+        occupancy = new OccupancyIndex(characters.size(), (long) GRID_SIZE * GRID_SIZE);
+        for (int i = PACMAN + 1; i < characters.size(); i++)
+            occupancy.add(i, cellKey(characters.getRow(i), characters.getCol(i)));
+
+        // Counted once here, then kept up to date as cells change
+        long cellCount = (long) GRID_SIZE * GRID_SIZE;
+        remainingDots = getOpenCellCount() - visited.cardinality();
+        cherryCount = cherryMap.cardinality();
+
+        // Small boards index the cells a cherry may appear on
+        freeCells = null;
+        if (cellCount <= FreeCellSet.MAX_CELLS) {
+            freeCells = new FreeCellSet((int) cellCount);
+            for (int row = 0; row < GRID_SIZE; row++) {
+                for (int col = 0; col < GRID_SIZE; col++) {
+                    if (cherryMap.get(row, col) || isWall(row, col))
+                        freeCells.remove((int) cellKey(row, col));
                 }
             }
         }
+    }
 
+    private boolean isOnBoard(int row, int col) {
+        return row >= 0 && col >= 0 && row < GRID_SIZE && col < GRID_SIZE;
+    }
 
+    private long cellKey(int row, int col) {
+        return (long) row * GRID_SIZE + col;
     }
 
 
@@ -142,158 +397,701 @@ public class Board{
         return score;
     }
 
+    // Replace the source of randomness, e.g. with a seeded one for a loaded board
+    public void setRandom(SplittableRandom random) {
+        this.random = random;
+    }
+
+    /*
+     * A fingerprint of the whole game state: the visited and cherry bits,
+     * every character, the score and moveCount. Two boards that played the
+     * same moves from the same start and seed have the same hash.
+     */
+    public long stateHash() {
+        long hash = visited.hash() * 31 + cherryMap.hash();
+        hash = hash * 31 + score;
+        hash = hash * 31 + moveCount;
+        for (int i = 0; i < characters.size(); i++) {
+            hash = hash * 31 + cellKey(characters.getRow(i), characters.getCol(i));
+            hash = hash * 31 + characters.getAppearance(i);
+        }
+        return hash;
+    }
+
+    public int getGhostCount() {
+        return characters.size() - 1;
+    }
+
+    public int getPacmanRow() {
+        return characters.getRow(PACMAN);
+    }
+
+    public int getPacmanCol() {
+        return characters.getCol(PACMAN);
+    }
+
+    // Position of a character: 0 is Pac-man, ghosts are 1 to getGhostCount()
+    public int getCharacterRow(int index) {
+        return characters.getRow(index);
+    }
 
+    public int getCharacterCol(int index) {
+        return characters.getCol(index);
+    }
+
+
+    /*
+     * The char view is only allocated the first time somebody asks for it.
+     * From then on it is kept up to date cell by cell on every move.
+     */
     public char[][] getGrid() {
+        if (grid == null)
+            refreshGrid();
         return grid;
     }
 
+    /*
+     * Character of a single cell, computed from the packed state without
+     * touching the char view.
+     */
+    public char getCell(int row, int col) {
+        if (grid != null)
+            return grid[row][col];
+        return computeCell(row, col);
+    }
+
+    /*
+     * The ghost with the highest index is drawn on top of a shared cell,
+     * and a ghost on Pac-man's cell is drawn as 'X'.
+     */
+    private char computeCell(int row, int col) {
+        boolean isPacman = characters.getRow(PACMAN) == row && characters.getCol(PACMAN) == col;
+        int ghost = occupancy.top(cellKey(row, col));
+        if (ghost >= 0)
+            return isPacman ? 'X' : characters.getAppearance(ghost);
+        if (isPacman)
+            return characters.getAppearance(PACMAN);
+        return backgroundCell(row, col);
+    }
+
+    private char backgroundCell(int row, int col) {
+        if (isWall(row, col))
+            return '#';
+        if (cherryMap.get(row, col))
+            return 'C';
+        if (!visited.get(row, col))
+            return '*';
+        return ' ';
+    }
+
+    // Dots Pac-man has not eaten yet
+    public long getRemainingDots() {
+        return remainingDots;
+    }
+
+    // Cherries waiting to be eaten
+    public long getCherryCount() {
+        return cherryCount;
+    }
+
+    // Share of the open cells Pac-man has visited, in percent
+    public double getCoverage() {
+        long openCells = getOpenCellCount();
+        return 100.0 * (openCells - remainingDots) / openCells;
+    }
+
+    // Cells that are not walls, each of which starts with a dot
+    public long getOpenCellCount() {
+        long cellCount = (long) GRID_SIZE * GRID_SIZE;
+        return maze == null ? cellCount : cellCount - maze.getWallCount();
+    }
+
+    public boolean isWall(int row, int col) {
+        return maze != null && maze.isWall(row, col);
+    }
+
+    // The walls and move tables, or null on an open board
+    public Maze getMaze() {
+        return maze;
+    }
+
     public void setVisited(int x, int y) {
-        if (x < 0 || y < 0 || x >= GRID_SIZE || y > GRID_SIZE) return;
-        visited[x][y] = true;
+        if (x < 0 || y < 0 || x >= GRID_SIZE || y >= GRID_SIZE) return;
+        if (!visited.get(x, y)) {
+            visited.set(x, y);
+            remainingDots--;
+        }
     }
 
     public void refreshGrid() {
+        long start = Metrics.now();
+        if (grid == null)
+            grid = new char[GRID_SIZE][GRID_SIZE];
+
+        long[] cells = characterCells();
+        int next = 0;
+        for (int row = 0; row < GRID_SIZE; row++)
+            next = fillRow(row, grid[row], cells, next);
+        Metrics.REFRESH_GRID.since(start);
+    }
 
-        for (int i = 0; i < GRID_SIZE; i++) {
-            for (int j = 0; j < GRID_SIZE; j++) {
-                if (!visited[i][j])
-                    grid[i][j] = '*';
-                else
-                    grid[i][j] = ' ';
+    /*
+     * Put the characters of a row into line, a word of flags at a time, so
+     * untouched parts of a chunked board cost one lookup per 64 cells. Only
+     * cells somebody stands on are computed one by one: cells holds every
+     * character's cell from characterCells, and next is where this row's
+     * begin. Rows must be filled in order.
+     *
+     * @return where the next row's cells begin
+     */
+    private int fillRow(int row, char[] line, long[] cells, int next) {
+        for (int word = 0; word < visited.getWordsPerRow(); word++) {
+            long seen = visited.getWord(row, word);
+            long cherries = cherryMap.getWord(row, word);
+            long walls = maze == null ? 0 : maze.getWalls().getWord(row, word);
+            int last = Math.min(GRID_SIZE, (word + 1) << 6);
+            for (int col = word << 6; col < last; col++) {
+                long bit = 1L << col;
+                line[col] = (walls & bit) != 0 ? '#'
+                    : (cherries & bit) != 0 ? 'C' : (seen & bit) != 0 ? ' ' : '*';
             }
         }
+        long end = cellKey(row, 0) + GRID_SIZE;
+        for (; next < cells.length && cells[next] < end; next++) {
+            int col = (int) (cells[next] % GRID_SIZE);
+            line[col] = computeCell(row, col);
+        }
+        return next;
+    }
 
-        for (int i = 0; i < GRID_SIZE; i++) {
-            for (int j = 0; j < GRID_SIZE; j++) {
-                if (cherryMap[i][j])
-                    grid[i][j] = 'C';
-            }
+    // Where every character stands, sorted in row order
+    private long[] characterCells() {
+        return characterCells(new long[characters.size()]);
+    }
+
+    // The same into an array of exactly getGhostCount() + 1 entries
+    private long[] characterCells(long[] cells) {
+        for (int i = 0; i < cells.length; i++)
+            cells[i] = cellKey(characters.getRow(i), characters.getCol(i));
+        Arrays.sort(cells);
+        return cells;
+    }
+
+    /*
+     * Rewrite only the cells touched by the last move. The occupancy index
+     * says who stands on each of them, so no character list is walked.
+     */
+    private void refreshChangedCells() {
+        if (grid == null) return; // Nobody has asked for the char view yet
+
+        long start = Metrics.now();
+        for (int i = 0; i < changedCount; i++) {
+            int row = (int) (changedCells[i] / GRID_SIZE);
+            int col = (int) (changedCells[i] % GRID_SIZE);
+            grid[row][col] = computeCell(row, col);
         }
-        grid[pacman.getRow()][pacman.getCol()] = pacman.getAppearance();
-        for (PacCharacter ghost : ghosts) {
-            if (pacman.getRow() == ghost.getRow() && pacman.getCol() == ghost.getCol())
-                grid[ghost.getRow()][ghost.getCol()] = 'X';
-            else grid[ghost.getRow()][ghost.getCol()] = ghost.getAppearance();
+        Metrics.CHANGED_CELLS.since(start);
+    }
+
+    private void markChanged(int row, int col) {
+        if (changedCount == changedCells.length)
+            changedCells = Arrays.copyOf(changedCells, changedCount * 2);
+        changedCells[changedCount++] = (long) row * GRID_SIZE + col;
+    }
+
+    /*
+     * Cells rewritten by the last call to move, encoded as
+     * row * GRID_SIZE + col, sorted and without duplicates.
+     */
+    public long[] getChangedCells() {
+        return Arrays.copyOf(changedCells, sortChangedCells());
+    }
+
+    /*
+     * Sort the cells touched by the last move and drop duplicates in
+     * place, so they can be read with getChangedCell without allocating.
+     *
+     * @return how many cells there are
+     */
+    int sortChangedCells() {
+        long start = Metrics.now();
+        Arrays.sort(changedCells, 0, changedCount);
+        int unique = 0;
+        for (int i = 0; i < changedCount; i++) {
+            if (unique == 0 || changedCells[unique - 1] != changedCells[i])
+                changedCells[unique++] = changedCells[i];
         }
+        changedCount = unique;
+        Metrics.CHANGED_CELLS.since(start);
+        return unique;
+    }
 
+    // A cell of the last move, valid after sortChangedCells
+    long getChangedCell(int index) {
+        return changedCells[index];
     }
 
 
     public boolean canMove(Direction direction) {
         if (direction == null) return false;
+        if (maze != null)
+            return maze.canMove(characters.getRow(PACMAN), characters.getCol(PACMAN), direction);
         // Calculate Coordinate after Displacement
-        int pacmanRow = pacman.getRow() + direction.getY();
-        int pacmanCol = pacman.getCol() + direction.getX();
+        int pacmanRow = characters.getRow(PACMAN) + direction.getY();
+        int pacmanCol = characters.getCol(PACMAN) + direction.getX();
 
         return pacmanRow >= 0 && pacmanRow < GRID_SIZE && pacmanCol >= 0 && pacmanCol < GRID_SIZE;
     }
 
 
+    /*
+     * Move Pac-man if the game is still running and the move stays on the
+     * board. This is the one entry point every front end drives the game with.
+     *
+     * @return true if the move was made
+     */
+    public boolean tryMove(Direction direction) {
+        if (!canMove(direction) || isGameOver())
+            return false;
+        move(direction);
+        return true;
+    }
+
+
+    /*
+     * Let move feed Metrics.MOVE, GHOST_MOVE and the bytes per move. Only
+     * the board a game loop plays should be, so that copies searched or
+     * simulated on other threads are not counted as ticks. Copies start
+     * without it.
+     */
+    public void setInstrumented(boolean instrumented) {
+        this.instrumented = instrumented;
+    }
+
     public void move(Direction direction) {
+        boolean timed = Metrics.ENABLED && instrumented;
+        long start = timed ? Metrics.now() : 0;
+        long allocated = timed ? Metrics.allocated() : 0;
+
+        // Remember where everybody stood before the move
+        changedCount = 0;
+        for (int i = 0; i < characters.size(); i++)
+            markChanged(characters.getRow(i), characters.getCol(i));
+        if (journal != null)
+            beginJournalMove();
+
         // Calculate Coordinate after Displacement
-        int pacmanRow = pacman.getRow() + direction.getY();
-        int pacmanCol = pacman.getCol() + direction.getX();
+        int pacmanRow = characters.getRow(PACMAN) + direction.getY();
+        int pacmanCol = characters.getCol(PACMAN) + direction.getX();
+        long flags = 0;
 
-        pacman.setPosition(pacmanRow, pacmanCol);
-        if (!visited[pacmanRow][pacmanCol]) {
+        characters.setPosition(PACMAN, pacmanRow, pacmanCol);
+        if (!visited.get(pacmanRow, pacmanCol)) {
             score += 10;
-            visited[pacmanRow][pacmanCol] = true;
+            visited.set(pacmanRow, pacmanCol);
+            remainingDots--;
+            flags |= MoveJournal.ATE_DOT;
         }
 
-        if (cherryMap[pacmanRow][pacmanCol]) {
+        if (cherryMap.get(pacmanRow, pacmanCol)) {
           score += 200;
-          cherryMap[pacmanRow][pacmanCol] = false;
+          clearCherry(pacmanRow, pacmanCol);
+          flags |= MoveJournal.ATE_CHERRY;
         }
 
-        for (PacCharacter ghost : ghosts) {
-            ghostMove(ghost);
+        markChanged(pacmanRow, pacmanCol);
+
+        // One field update per tick, then every ghost steers by lookups
+        field.update(pacmanRow, pacmanCol);
+        long ghostStart = timed ? Metrics.now() : 0;
+        for (int i = PACMAN + 1; i < characters.size(); i++) {
+            long from = cellKey(characters.getRow(i), characters.getCol(i));
+            ghostMove(i);
+            long to = cellKey(characters.getRow(i), characters.getCol(i));
+            occupancy.move(i, to);
+            markChanged(characters.getRow(i), characters.getCol(i));
+            if (journal != null && from != to)
+                journal.ghostMoved(i, from, to);
         }
+        if (timed)
+            Metrics.GHOST_MOVE.since(ghostStart);
 
         moveCount += 1;
+        long cherry = -1;
         if (moveCount == cherryInterval) {
-          addCherry();
+          cherry = addCherry();
           moveCount = 0;
+          if (cherry >= 0) {
+            markChanged((int) (cherry / GRID_SIZE), (int) (cherry % GRID_SIZE));
+            flags |= MoveJournal.ADDED_CHERRY;
+          }
         }
 
-        refreshGrid();
+        if (journal != null)
+            endJournalMove(flags, cherry);
+        refreshChangedCells();
+        if (timed) {
+            Metrics.allocatedSince(allocated);
+            Metrics.MOVE.since(start);
+        }
     }
 
-    private void addCherry() {
-      Random rand = new Random();
-      int randRow = rand.nextInt(GRID_SIZE);
-      int randCol = rand.nextInt(GRID_SIZE);
-      while (randRow == pacman.getRow() && randCol == pacman.getCol()) {
-        randRow = rand.nextInt(GRID_SIZE);
-        randCol = rand.nextInt(GRID_SIZE);
-      }
-      cherryMap[randRow][randCol] = true;
+    /*
+     * Put a cherry on a random cell that holds no cherry, ghost or Pac-man.
+     * The char view is updated here, but the cell is left out of the
+     * changed cells, which belong to the last move; move adds it when the
+     * cherry is part of one.
+     *
+     * @return the cell of the new cherry, or -1 if none was found
+     */
+    long addCherry() {
+      long cell = randomFreeCell();
+      if (cell < 0)
+        return -1;
+      int row = (int) (cell / GRID_SIZE);
+      int col = (int) (cell % GRID_SIZE);
+      setCherry(row, col);
+      if (grid != null)
+        grid[row][col] = computeCell(row, col);
+      return cell;
     }
 
+    /*
+     * Small boards pick from the set of cells without a cherry, and only
+     * pick again when they hit one of the few cells holding a character.
+     * Large boards guess any cell, which on a board too big for the set
+     * almost always lands on a free one. When guessing fails, small boards
+     * scan the whole set; large ones scan at most MAX_CHERRY_SCAN cells
+     * from a random one and give up after that, so a crowded giant board
+     * skips a cherry rather than scanning every cell for it.
+     */
+    private long randomFreeCell() {
+        long candidates = freeCells != null ? freeCells.size() : (long) GRID_SIZE * GRID_SIZE;
+        if (candidates == 0)
+            return -1;
+        for (int tries = 0; tries < 64; tries++) {
+            long cell = candidate(random.nextLong(candidates));
+            if (isFree((int) (cell / GRID_SIZE), (int) (cell % GRID_SIZE)))
+                return cell;
+        }
+        long start = random.nextLong(candidates);
+        long scan = freeCells != null ? candidates : Math.min(candidates, MAX_CHERRY_SCAN);
+        for (long i = 0; i < scan; i++) {
+            long cell = candidate((start + i) % candidates);
+            if (isFree((int) (cell / GRID_SIZE), (int) (cell % GRID_SIZE)))
+                return cell;
+        }
+        return -1;
+    }
 
-    public boolean isGameOver() {
-        int pacmanRow = pacman.getRow();
-        int pacmanCol = pacman.getCol();
+    private long candidate(long index) {
+        return freeCells != null ? freeCells.get((int) index) : index;
+    }
 
-        for (PacCharacter ghost : ghosts)
-            if (ghost.getRow() == pacmanRow && ghost.getCol() == pacmanCol)
-                return true;
+    private boolean isFree(int row, int col) {
+        return !cherryMap.get(row, col)
+            && !isWall(row, col)
+            && !(characters.getRow(PACMAN) == row && characters.getCol(PACMAN) == col)
+            && !occupancy.isOccupied(cellKey(row, col));
+    }
 
-        return false;
+    // Cherries only come and go through these, which keep freeCells in step
+    private void setCherry(int row, int col) {
+        cherryMap.set(row, col);
+        cherryCount++;
+        if (freeCells != null)
+            freeCells.remove((int) cellKey(row, col));
+    }
 
+    private void clearCherry(int row, int col) {
+        cherryMap.clear(row, col);
+        cherryCount--;
+        if (freeCells != null)
+            freeCells.add((int) cellKey(row, col));
     }
 
-    // Monster always move towards Pac-man
-    public Direction ghostMove(PacCharacter ghost) {
-        int pacmanRow = pacman.getRow();
-        int pacmanCol = pacman.getCol();
 
-        int ghostRow = ghost.getRow();
-        int ghostCol = ghost.getCol();
+    /*
+     * Start keeping a journal of every move from now on, so moves can be
+     * undone with undo and rewind and played again with redo. Undoing
+     * costs about as much as the move did, whatever the board size.
+     *
+     * Every checkpointInterval moves a full copy of the board is kept as
+     * well, which lets rewind jump far back without undoing every move in
+     * between. Pass 0 to keep no copies.
+     *
+     * The random numbers are not rewound: after an undo, cherries may appear in
+     * other places than they did the first time.
+     */
+    public void enableJournal(int checkpointInterval) {
+        journal = new MoveJournal();
+        this.checkpointInterval = checkpointInterval;
+        checkpoints = new ArrayList<>();
+        if (checkpointInterval > 0)
+            checkpoints.add(new Checkpoint(this, 0));
+    }
 
-        int rowDist = Math.abs(ghostRow - pacmanRow);
-        int colDist = Math.abs(ghostCol - pacmanCol);
+    // The journal, or null if enableJournal was never called
+    public MoveJournal getJournal() {
+        return journal;
+    }
 
-        if (rowDist == 0 && colDist > 0) {
-            if (ghostCol - pacmanCol > 0) {
-                ghost.setPosition(ghostRow, ghostCol - 1);
-                return Direction.LEFT;
-            } else { // ghostCol - pacmanCol < 0
-                ghost.setPosition(ghostRow, ghostCol + 1);
-                return Direction.RIGHT;
-            }
+    // Take back the last move; false if there is none to take back
+    public boolean undo() {
+        return undo(1) == 1;
+    }
+
+    // Take back up to the given number of moves and return how many were
+    public int undo(int moves) {
+        if (journal == null)
+            return 0;
+        int target = Math.max(0, journal.getPosition() - moves);
+        int undone = journal.getPosition() - target;
+        rewind(target);
+        return undone;
+    }
+
+    // Play again the move taken back last; false if there is none
+    public boolean redo() {
+        if (journal == null || journal.getPosition() == journal.getLength())
+            return false;
+        rewind(journal.getPosition() + 1);
+        return true;
+    }
+
+    /*
+     * Put the board back the way it was after the given number of journaled
+     * moves, undoing or redoing moves or starting from a checkpoint,
+     * whichever touches fewer entries.
+     */
+    public void rewind(int move) {
+        if (journal == null || move < 0 || move > journal.getLength())
+            throw new IllegalArgumentException("No journaled move " + move);
+        changedCount = 0;
+
+        int position = journal.getPosition();
+        long stepCost = Math.abs(journal.start(position) - journal.start(move));
+        Checkpoint nearest = null;
+        for (Checkpoint checkpoint : checkpoints) {
+            if (checkpoint.move <= move)
+                nearest = checkpoint;
         }
-        else if (rowDist > 0 && colDist == 0 ) {
-            if (ghostRow - pacmanRow > 0) {
-                ghost.setPosition(ghostRow - 1, ghostCol);
-                return Direction.UP;
-            } else { // ghostRow - pacmanRow < 0
-                ghost.setPosition(ghostRow + 1, ghostCol);
-                return Direction.DOWN;
+        if (nearest != null
+            && nearest.cost() + journal.start(move) - journal.start(nearest.move) < stepCost) {
+            nearest.restore(this);
+            position = nearest.move;
+        }
+
+        while (position > move)
+            applyRecord(--position, false);
+        while (position < move)
+            applyRecord(position++, true);
+        journal.setPosition(move);
+
+        field.update(characters.getRow(PACMAN), characters.getCol(PACMAN));
+        refreshChangedCells();
+    }
+
+    private void beginJournalMove() {
+        // A new move forgets the moves that were undone, and their checkpoints
+        int position = journal.getPosition();
+        while (!checkpoints.isEmpty() && checkpoints.get(checkpoints.size() - 1).move > position)
+            checkpoints.remove(checkpoints.size() - 1);
+        journal.beginMove(score, moveCount,
+                          cellKey(characters.getRow(PACMAN), characters.getCol(PACMAN)));
+    }
+
+    private void endJournalMove(long flags, long cherry) {
+        journal.endMove(score, moveCount,
+                        cellKey(characters.getRow(PACMAN), characters.getCol(PACMAN)), flags, cherry);
+        int position = journal.getPosition();
+        if (checkpointInterval > 0 && position % checkpointInterval == 0)
+            checkpoints.add(new Checkpoint(this, position));
+    }
+
+    /*
+     * Apply the record of one move forwards, or take it back. Flags are
+     * flipped and characters moved in the opposite order when going back.
+     */
+    private void applyRecord(int move, boolean forward) {
+        int start = journal.start(move);
+        int end = journal.start(move + 1);
+        long flags = journal.get(start + MoveJournal.FLAGS);
+        long pacmanCell = journal.get(start + MoveJournal.PACMAN_AFTER);
+        int pacmanRow = (int) (pacmanCell / GRID_SIZE);
+        int pacmanCol = (int) (pacmanCell % GRID_SIZE);
+        long cherry = journal.get(start + MoveJournal.CHERRY);
+
+        if (forward) {
+            if ((flags & MoveJournal.ATE_DOT) != 0) {
+                visited.set(pacmanRow, pacmanCol);
+                remainingDots--;
+            }
+            if ((flags & MoveJournal.ATE_CHERRY) != 0)
+                clearCherry(pacmanRow, pacmanCol);
+            for (int i = start + MoveJournal.GHOSTS; i < end; i += 3)
+                placeCharacter((int) journal.get(i), journal.get(i + 2));
+            if ((flags & MoveJournal.ADDED_CHERRY) != 0) {
+                setCherry((int) (cherry / GRID_SIZE), (int) (cherry % GRID_SIZE));
+                markChanged((int) (cherry / GRID_SIZE), (int) (cherry % GRID_SIZE));
             }
+            placeCharacter(PACMAN, pacmanCell);
+        } else {
+            if ((flags & MoveJournal.ADDED_CHERRY) != 0) {
+                clearCherry((int) (cherry / GRID_SIZE), (int) (cherry % GRID_SIZE));
+                markChanged((int) (cherry / GRID_SIZE), (int) (cherry % GRID_SIZE));
+            }
+            for (int i = end - 3; i >= start + MoveJournal.GHOSTS; i -= 3)
+                placeCharacter((int) journal.get(i), journal.get(i + 1));
+            if ((flags & MoveJournal.ATE_CHERRY) != 0)
+                setCherry(pacmanRow, pacmanCol);
+            if ((flags & MoveJournal.ATE_DOT) != 0) {
+                visited.clear(pacmanRow, pacmanCol);
+                remainingDots++;
+            }
+            placeCharacter(PACMAN, journal.get(start + MoveJournal.PACMAN_BEFORE));
         }
-        else if (rowDist == 0 && colDist == 0) {
-            return Direction.STAY;
+
+        long counters = journal.get(start + (forward ? MoveJournal.AFTER : MoveJournal.BEFORE));
+        score = MoveJournal.score(counters);
+        moveCount = MoveJournal.moveCount(counters);
+    }
+
+    // Move a character to a cell, keeping the occupancy index and changed cells in step
+    private void placeCharacter(int index, long cell) {
+        markChanged(characters.getRow(index), characters.getCol(index));
+        int row = (int) (cell / GRID_SIZE);
+        int col = (int) (cell % GRID_SIZE);
+        characters.setPosition(index, row, col);
+        if (index != PACMAN)
+            occupancy.move(index, cell);
+        markChanged(row, col);
+    }
+
+    /*
+     * A full copy of the board after some journaled move. Restoring one
+     * marks every cell whose flags differ as changed, so the char view
+     * and getChangedCells stay right.
+     */
+    private static final class Checkpoint {
+        final int move;
+        final BitGrid visited;
+        final BitGrid cherryMap;
+        final CharacterStore characters;
+        final int score;
+        final int moveCount;
+
+        Checkpoint(Board board, int move) {
+            this.move = move;
+            visited = board.visited.copy();
+            cherryMap = board.cherryMap.copy();
+            characters = board.characters.copy();
+            score = board.score;
+            moveCount = board.moveCount;
         }
-        else {
-            if (rowDist < colDist) {
-                if (ghostRow - pacmanRow > 0) {
-                    ghost.setPosition(ghostRow - 1, ghostCol);
-                    return Direction.UP;
-                } else { // ghostRow - pacmanRow < 0
-                    ghost.setPosition(ghostRow + 1, ghostCol);
-                    return Direction.DOWN;
-                }
-            } else {
-                if (ghostCol - pacmanCol > 0) {
-                    ghost.setPosition(ghostRow, ghostCol - 1);
-                    return Direction.LEFT;
-                } else { // ghostCol - pacmanCol < 0
-                    ghost.setPosition(ghostRow, ghostCol + 1);
-                    return Direction.RIGHT;
-                }
+
+        // Entries touched by a restore, comparable with journal entries
+        long cost() {
+            return visited.getStoredWords() + cherryMap.getStoredWords() + 2L * characters.size();
+        }
+
+        void restore(Board board) {
+            board.markDifferences(board.visited, visited);
+            board.visited.copyFrom(visited);
+            board.remainingDots = board.getOpenCellCount() - visited.cardinality();
+            board.markDifferences(board.cherryMap, cherryMap);
+            for (int i = 0; i < characters.size(); i++) {
+                long cell = board.cellKey(characters.getRow(i), characters.getCol(i));
+                if (cell != board.cellKey(board.characters.getRow(i), board.characters.getCol(i)))
+                    board.placeCharacter(i, cell);
             }
+            board.score = score;
+            board.moveCount = moveCount;
         }
+    }
+
+    /*
+     * Mark every cell whose flag differs between two grids. Cherries are
+     * also copied over one by one here, so freeCells follows them.
+     */
+    private void markDifferences(BitGrid current, BitGrid target) {
+        current.forEachDifference(target, (row, word, diff) -> {
+            while (diff != 0) {
+                int col = word * 64 + Long.numberOfTrailingZeros(diff);
+                markChanged(row, col);
+                if (current == cherryMap) {
+                    if (target.get(row, col))
+                        setCherry(row, col);
+                    else
+                        clearCherry(row, col);
+                }
+                diff &= diff - 1;
+            }
+        });
+    }
+
+
+    // The game ends when a ghost catches Pac-man or he has eaten every dot
+    public boolean isGameOver() {
+        return remainingDots == 0 || isCaught();
+    }
+
+    public boolean isCaught() {
+        return occupancy.isOccupied(cellKey(characters.getRow(PACMAN), characters.getCol(PACMAN)));
+    }
+
+    public boolean isWon() {
+        return remainingDots == 0 && !isCaught();
+    }
+
+    // Monster always move towards Pac-man
+    public Direction ghostMove(PacCharacter ghost) {
+        Direction step = ghostStep(ghost.getRow(), ghost.getCol());
+        ghost.setPosition(ghost.getRow() + step.getY(), ghost.getCol() + step.getX());
+        return step;
+    }
+
+    // The same for the character at an index of the store
+    private Direction ghostMove(int ghost) {
+        int row = characters.getRow(ghost);
+        int col = characters.getCol(ghost);
+        Direction step = ghostStep(row, col);
+        characters.setPosition(ghost, row + step.getY(), col + step.getX());
+        return step;
+    }
+
+    /*
+     * Step that takes a ghost one cell closer to Pac-man on the shared
+     * distance field. When both axes get closer, the axis with the smaller
+     * gap goes first, which is how the ghosts have always chased.
+     */
+    private Direction ghostStep(int ghostRow, int ghostCol) {
+        int pacmanRow = characters.getRow(PACMAN);
+        int pacmanCol = characters.getCol(PACMAN);
+        int rowDist = Math.abs(ghostRow - pacmanRow);
+        int colDist = Math.abs(ghostCol - pacmanCol);
+        if (rowDist == 0 && colDist == 0)
+            return Direction.STAY;
+
+        Direction vertical = ghostRow > pacmanRow ? Direction.UP : Direction.DOWN;
+        Direction horizontal = ghostCol > pacmanCol ? Direction.LEFT : Direction.RIGHT;
+        boolean verticalFirst = colDist == 0 || (rowDist > 0 && rowDist < colDist);
 
+        Direction first = verticalFirst ? vertical : horizontal;
+        Direction second = verticalFirst ? horizontal : vertical;
+        if (field.isDownhill(ghostRow, ghostCol, first))
+            return first;
+        if (field.isDownhill(ghostRow, ghostCol, second))
+            return second;
+        // Around a wall the way on may lead away from Pac-man for now
+        if (maze != null) {
+            for (Direction direction : MovePolicy.MOVES) {
+                if (direction != first && direction != second
+                    && field.isDownhill(ghostRow, ghostCol, direction))
+                    return direction;
+            }
+        }
+        return Direction.STAY;
     }
 
 
@@ -301,35 +1099,132 @@ public class Board{
 
     public void saveBoard(String outputBoard) throws IOException
     {
-        PrintWriter output = new PrintWriter(new File(outputBoard));
-        // First print out the GRID_SIZE.
-        output.println(GRID_SIZE);
-        // Second print out the score.
-        output.println(score);
-        // Third print out the moveCount.
-        output.println(moveCount);
-
-        for ( int rowIndex = 0; rowIndex < GRID_SIZE; rowIndex++ )
-        {
-            for ( int colIndex = 0; colIndex < GRID_SIZE; colIndex++ )
-                output.print(grid[rowIndex][colIndex]);
-            output.print("\n");
+        long start = Metrics.now();
+        try (Writer output = Files.newBufferedWriter(Paths.get(outputBoard))) {
+            // First print out the GRID_SIZE.
+            output.write(GRID_SIZE + "\n");
+            // Second print out the score.
+            output.write(score + "\n");
+            // Third print out the moveCount.
+            output.write(moveCount + "\n");
+
+            char[] line = new char[GRID_SIZE + 1];
+            line[GRID_SIZE] = '\n';
+            long[] cells = characterCells();
+            int next = 0;
+            for ( int rowIndex = 0; rowIndex < GRID_SIZE; rowIndex++ )
+            {
+                next = fillRow(rowIndex, line, cells, next);
+                output.write(line);
+            }
         }
-        output.close();
+        Metrics.SAVE_BOARD.since(start);
     }
 
 
+    /*
+     * Save the board in the binary format: a fixed header with the size,
+     * score, moveCount and Pac-man's position, one record per ghost, then
+     * the visited and cherry bits as packed words. A board with walls is
+     * saved as version 2, with the wall bits after the cherries.
+     */
+    public void saveBoardBinary(String outputBoard) throws IOException {
+        long start = Metrics.now();
+        try (FileChannel channel = FileChannel.open(Paths.get(outputBoard),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeBinary(channel);
+        }
+        Metrics.SAVE_BOARD.since(start);
+    }
+
+    public void writeBinary(WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+        writeBinary(channel, buffer);
+        BitGrid.flush(channel, buffer);
+    }
+
+    /*
+     * Write the binary board through a caller's buffer, which may already
+     * hold bytes of its own and is left partly filled, as with
+     * BitGrid.writeTo. getBinaryLength bytes are added.
+     */
+    public void writeBinary(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < BINARY_HEADER_BYTES)
+            BitGrid.flush(channel, buffer);
+        buffer.putInt(BINARY_MAGIC);
+        buffer.putInt(maze == null ? BINARY_VERSION : BINARY_WALLS_VERSION);
+        buffer.putInt(GRID_SIZE);
+        buffer.putInt(score);
+        buffer.putInt(moveCount);
+        buffer.putInt(characters.getRow(PACMAN));
+        buffer.putInt(characters.getCol(PACMAN));
+        buffer.putInt(characters.size() - 1);
+        for (int i = PACMAN + 1; i < characters.size(); i++) {
+            if (buffer.remaining() < BINARY_GHOST_BYTES)
+                BitGrid.flush(channel, buffer);
+            buffer.putInt(characters.getRow(i));
+            buffer.putInt(characters.getCol(i));
+            buffer.putChar(characters.getAppearance(i));
+        }
+        visited.writeTo(channel, buffer);
+        cherryMap.writeTo(channel, buffer);
+        if (maze != null)
+            maze.getWalls().writeTo(channel, buffer);
+    }
+
+    // Bytes writeBinary writes for the board as it stands
+    public long getBinaryLength() {
+        return binaryLength(GRID_SIZE, characters.size() - 1, maze != null);
+    }
+
+
+
+    /*
+     * Write the cells as ASCII, one line per row, into a caller's buffer
+     * starting at the offset, so the board can be sent again and again
+     * without building Strings. The buffer needs GRID_SIZE * (GRID_SIZE + 1)
+     * bytes past the offset.
+     *
+     * @return the offset just past the last line
+     */
+    public int writeCells(byte[] buffer, int offset) {
+        return writeCells(buffer, offset, new char[GRID_SIZE], new long[characters.size()]);
+    }
+
+    /*
+     * The same with the scratch space supplied by the caller, so nothing is
+     * allocated: line holds GRID_SIZE chars and cells exactly
+     * getGhostCount() + 1 longs.
+     */
+    public int writeCells(byte[] buffer, int offset, char[] line, long[] cells) {
+        if (line.length < GRID_SIZE || cells.length != characters.size())
+            throw new IllegalArgumentException("Scratch arrays do not fit the board");
+        characterCells(cells);
+        int next = 0;
+        for (int row = 0; row < GRID_SIZE; row++) {
+            next = fillRow(row, line, cells, next);
+            for (int col = 0; col < GRID_SIZE; col++)
+                buffer[offset++] = (byte) line[col];
+            buffer[offset++] = '\n';
+        }
+        return offset;
+    }
 
     public String toString(){
 
         StringBuilder outputString = new StringBuilder();
         outputString.append(String.format("Score: %d\n", this.score));
 
+        char[] line = new char[GRID_SIZE];
+        long[] cells = characterCells();
+        int next = 0;
         for (int row = 0; row < GRID_SIZE; row++)
         {
+            next = fillRow(row, line, cells, next);
             for (int column = 0; column < GRID_SIZE; column++) {
                 outputString.append("  ");
-                outputString.append(grid[row][column]);
+                outputString.append(line[column]);
             }
 
             outputString.append("\n");
@@ -0,0 +1,393 @@
+/**
+ * BoardBenchmark.java
+ *
+ * Micro-benchmarks for the Board hot paths. Every benchmark is warmed up
+ * and then measured for a fixed time on each board size, reporting the
+ * average time per operation and the bytes allocated per operation as
+ * seen by the thread allocation counter.
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+
+public class BoardBenchmark
+{
+  private int[] sizes = { 10, 100, 1000, 4000 };
+  private long warmupMillis = 500;
+  private long measureMillis = 1000;
+  private String filter = null;      // Only run benchmarks whose name contains this
+
+  // Ops run back to back between two clock reads
+  private static final int BATCH = 64;
+
+  // Results are folded in here so the JIT cannot drop the work
+  static volatile long sink;
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  public static void main(String[] args) throws IOException
+  {
+    BoardBenchmark benchmark = new BoardBenchmark();
+    benchmark.processArgs(args);
+    benchmark.run();
+  }
+
+
+  /*
+   * Name:      run
+   * Purpose:   Run every selected benchmark on every size and print a table.
+   */
+  public void run() throws IOException
+  {
+    List<Case> cases = Arrays.asList(
+        new MoveCase(), new RefreshGridCase(), new GhostMoveCase(),
+        new GameOverCase(), new AddCherryCase(), new ToStringCase(),
+        new SaveBoardCase(), new LoadBoardCase(),
+        new SaveBinaryCase(), new LoadBinaryCase(), new UndoCase(),
+        new CopyCase());
+
+    System.out.printf("%-14s %6s %14s %14s %12s%n",
+        "Benchmark", "Size", "ns/op", "B/op", "MB/s alloc");
+    for (Case c : cases) {
+      if (filter != null && !c.name().contains(filter))
+        continue;
+      for (int size : sizes) {
+        c.setUp(size);
+        measure(c, size, warmupMillis);
+        Result result = measure(c, size, measureMillis);
+        c.tearDown();
+
+        double nsPerOp = (double) result.nanos / result.ops;
+        System.out.printf("%-14s %6d %14.1f %14.1f %12.1f%n",
+            c.name(), size, nsPerOp, (double) result.bytes / result.ops,
+            result.bytes / (result.nanos / 1e9) / (1 << 20));
+      }
+    }
+  }
+
+
+  /*
+   * Name:      measure
+   * Purpose:   Run a case for the given time. Resets happen between
+   *            batches and are left out of both time and allocation.
+   */
+  private Result measure(Case c, int size, long millis) throws IOException
+  {
+    Result result = new Result();
+    long threadId = Thread.currentThread().getId();
+    long budget = millis * 1_000_000L;
+
+    while (result.nanos < budget) {
+      long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+      long start = System.nanoTime();
+      int n = 0;
+      do {
+        c.op();
+        n++;
+      } while (n < BATCH && !c.needsReset());
+      result.nanos += System.nanoTime() - start;
+      result.bytes += THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+      result.ops += n;
+
+      if (c.needsReset())
+        c.setUp(size);
+    }
+    return result;
+  }
+
+  private static class Result
+  {
+    long ops;
+    long nanos;
+    long bytes;
+  }
+
+
+  /*
+   * Name:      Case
+   * Purpose:   One benchmarked operation. setUp and tearDown are untimed.
+   */
+  private abstract static class Case
+  {
+    Board board;
+
+    abstract String name();
+
+    void setUp(int size) throws IOException
+    {
+      board = new Board(size);
+    }
+
+    abstract void op() throws IOException;
+
+    boolean needsReset()
+    {
+      return false;
+    }
+
+    void tearDown() {}
+  }
+
+  private static class MoveCase extends Case
+  {
+    // Clockwise, so each leg turns right from the one before
+    private static final Direction[] SPIRAL =
+        { Direction.RIGHT, Direction.DOWN, Direction.LEFT, Direction.UP };
+
+    private int heading;            // Index into SPIRAL
+    private int leg;                // Length of the current leg
+    private int step;               // Moves made along it
+
+    String name() { return "move"; }
+
+    void setUp(int size) throws IOException
+    {
+      super.setUp(size);
+      heading = 0;
+      leg = 1;
+      step = 0;
+    }
+
+    /*
+     * Walk an outward square spiral, legs of 1, 1, 2, 2, 3, 3, ... cells,
+     * so nearly every move eats a fresh dot. Where the edge cuts a leg
+     * short Pac-man turns early and ends up following the rim.
+     */
+    void op()
+    {
+      for (int i = 0; i < SPIRAL.length; i++) {
+        if (board.canMove(SPIRAL[heading])) {
+          board.move(SPIRAL[heading]);
+          if (++step == leg)
+            turn();
+          return;
+        }
+        turn();
+      }
+    }
+
+    private void turn()
+    {
+      heading = (heading + 1) % SPIRAL.length;
+      step = 0;
+      if (heading % 2 == 0)
+        leg++;
+    }
+
+    boolean needsReset()
+    {
+      return board.isGameOver();
+    }
+  }
+
+  private static class RefreshGridCase extends Case
+  {
+    String name() { return "refreshGrid"; }
+
+    void op()
+    {
+      board.refreshGrid();
+    }
+  }
+
+  private static class GhostMoveCase extends Case
+  {
+    private final PacCharacter ghost = new PacCharacter(0, 0, 'D');
+
+    String name() { return "ghostMove"; }
+
+    void op()
+    {
+      if (board.ghostMove(ghost) == Direction.STAY)
+        ghost.setPosition(0, 0);
+    }
+  }
+
+  private static class GameOverCase extends Case
+  {
+    String name() { return "isGameOver"; }
+
+    void op()
+    {
+      if (board.isGameOver())
+        sink++;
+    }
+  }
+
+  private static class AddCherryCase extends Case
+  {
+    private boolean full;
+
+    String name() { return "addCherry"; }
+
+    void op()
+    {
+      full = board.addCherry() < 0;
+    }
+
+    boolean needsReset()
+    {
+      return full;
+    }
+  }
+
+  private static class UndoCase extends Case
+  {
+    private int turn;
+
+    String name() { return "moveUndo"; }
+
+    void setUp(int size) throws IOException
+    {
+      super.setUp(size);
+      board.enableJournal(0);
+    }
+
+    void op()
+    {
+      // A move and taking it back, as a search would try one
+      Direction direction = MovePolicy.MOVES[turn++ % MovePolicy.MOVES.length];
+      if (board.canMove(direction)) {
+        board.move(direction);
+        board.undo();
+      }
+    }
+  }
+
+  private static class CopyCase extends Case
+  {
+    String name() { return "copy"; }
+
+    void op()
+    {
+      sink += board.copy().getScore();
+    }
+  }
+
+  private static class ToStringCase extends Case
+  {
+    String name() { return "toString"; }
+
+    void op()
+    {
+      sink += board.toString().length();
+    }
+  }
+
+  private static class SaveBoardCase extends Case
+  {
+    File file;
+
+    String name() { return "saveBoard"; }
+
+    void setUp(int size) throws IOException
+    {
+      super.setUp(size);
+      file = File.createTempFile("bench", ".board");
+    }
+
+    void op() throws IOException
+    {
+      board.saveBoard(file.getPath());
+    }
+
+    void tearDown()
+    {
+      file.delete();
+    }
+  }
+
+  private static class LoadBoardCase extends SaveBoardCase
+  {
+    String name() { return "Board(String)"; }
+
+    void setUp(int size) throws IOException
+    {
+      super.setUp(size);
+      board.saveBoard(file.getPath());
+    }
+
+    void op() throws IOException
+    {
+      sink += new Board(file.getPath()).getScore();
+    }
+  }
+
+
+  private static class SaveBinaryCase extends SaveBoardCase
+  {
+    String name() { return "saveBinary"; }
+
+    void op() throws IOException
+    {
+      board.saveBoardBinary(file.getPath());
+    }
+  }
+
+  private static class LoadBinaryCase extends SaveBoardCase
+  {
+    String name() { return "loadBinary"; }
+
+    void setUp(int size) throws IOException
+    {
+      super.setUp(size);
+      board.saveBoardBinary(file.getPath());
+    }
+
+    void op() throws IOException
+    {
+      sink += new Board(file.getPath()).getScore();
+    }
+  }
+
+
+  // The method used to process the command line arguments
+  private void processArgs(String[] args)
+  {
+    // Arguments must come in pairs
+    if((args.length % 2) != 0)
+    {
+      printUsage();
+      System.exit(-1);
+    }
+
+    for(int i = 0; i < args.length; i += 2)
+    {
+      if(args[i].equals("-s"))
+      {   // Comma separated list of board sizes
+        String[] parts = args[i + 1].split(",");
+        sizes = new int[parts.length];
+        for (int j = 0; j < parts.length; j++)
+          sizes[j] = Integer.parseInt(parts[j].trim());
+      }
+      else if(args[i].equals("-w"))
+        warmupMillis = Long.parseLong(args[i + 1]);
+      else if(args[i].equals("-m"))
+        measureMillis = Long.parseLong(args[i + 1]);
+      else if(args[i].equals("-b"))
+        filter = args[i + 1];
+      else
+      {   // Incorrect Argument
+        printUsage();
+        System.exit(-1);
+      }
+    }
+  }
+
+  // Print the Usage Message
+  private static void printUsage()
+  {
+    System.out.println("BoardBenchmark");
+    System.out.println("Usage:  BoardBenchmark [-s sizes] [-w millis] [-m millis] [-b name]");
+    System.out.println();
+    System.out.println("  Command line arguments come in pairs of the form: <command> <argument>");
+    System.out.println();
+    System.out.println("  -s [sizes]  -> Comma separated board sizes. The default is 10,100,1000,4000.");
+    System.out.println("  -w [millis] -> Warmup time per benchmark and size. The default is 500.");
+    System.out.println("  -m [millis] -> Measured time per benchmark and size. The default is 1000.");
+    System.out.println("  -b [name]   -> Only run benchmarks whose name contains this text.");
+  }
+}
@@ -0,0 +1,440 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads boards saved in the text format, plain or gzip compressed.
+ *
+ * The file is read once, front to back, through a large buffer. Rows are
+ * gathered into bands of a few megabytes, and each band is parsed into
+ * flag words and a list of characters by a fork/join task while the next
+ * is read. The bands are then merged in order, so the characters come out
+ * in the same order as a row by row parse would give. Only a few bands
+ * are in flight at once, so boards far bigger than memory as text still
+ * load in memory proportional to the board itself.
+ *
+ * Anything that does not fit the format is reported as an IOException
+ * naming the line or cell at fault.
+ */
+public class BoardLoader {
+
+    private static final int GZIP_MAGIC = 0x1f8b;
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final int BAND_BYTES = 4 << 20;  // Text parsed by one task
+
+    /*
+     * Most ghosts a loaded board may hold, text or binary. Far more than
+     * any game plays with, and low enough that a malformed file cannot
+     * make the loader reserve room for billions of them.
+     */
+    public static final int MAX_GHOSTS = 1 << 20;
+
+    /*
+     * What a text board holds, ready for Board to take over. walls is
+     * empty on an open board.
+     */
+    public static final class Parts {
+        public int size;
+        public int score;
+        public int moveCount;
+        public BitGrid visited;
+        public BitGrid cherryMap;
+        public BitGrid walls;
+        public CharacterStore characters;
+    }
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    private final int parallelism;
+    private long line;               // Lines read so far, for error messages
+
+    private BoardLoader(ReadableByteChannel channel, int parallelism) {
+        this.channel = channel;
+        this.parallelism = Math.max(1, parallelism);
+        buffer.flip();
+    }
+
+    public static boolean isGzip(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return ((in.read() << 8) | in.read()) == GZIP_MAGIC;
+        }
+    }
+
+    // Read a text board on the common fork/join pool
+    public static Parts read(Path path) throws IOException {
+        return read(path, ForkJoinPool.commonPool().getParallelism());
+    }
+
+    public static Parts read(Path path, int parallelism) throws IOException {
+        if (isGzip(path)) {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(path), BUFFER_BYTES)) {
+                return new BoardLoader(Channels.newChannel(in), parallelism).read();
+            }
+        }
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new BoardLoader(in, parallelism).read();
+        }
+    }
+
+    private Parts read() throws IOException {
+        fill();
+        if (buffer.remaining() >= 4 && buffer.getInt(buffer.position()) == Board.BINARY_MAGIC)
+            throw new IOException("Compressed binary boards are not supported; decompress it first");
+
+        Parts parts = new Parts();
+        long[] header = readHeader();
+        if (header[0] < 1 || header[0] > Integer.MAX_VALUE - 8)
+            throw new IOException("Board size must be between 1 and " + (Integer.MAX_VALUE - 8)
+                                  + ", found " + header[0]);
+        parts.size = (int) header[0];
+        parts.score = (int) header[1];
+        parts.moveCount = (int) header[2];
+        int size = parts.size;
+        checkLength(size);
+        parts.visited = BitGrid.create(size);
+        parts.cherryMap = BitGrid.create(size);
+        parts.walls = BitGrid.create(size);
+        long firstLine = line + 1;
+
+        int bandRows = (int) Math.max(1, Math.min(size, BAND_BYTES / (size + 1L)));
+        ArrayDeque<Band> pending = new ArrayDeque<>();
+        Merge merge = new Merge(parts, firstLine);
+        try {
+            for (int first = 0; first < size; first += bandRows) {
+                int rows = Math.min(bandRows, size - first);
+                // One spare byte for a '\r' parted from its '\n' by a refill
+                int bandBytes = Math.addExact(Math.multiplyExact(rows, size), 1);
+                byte[] cells = new byte[Math.min(bandBytes, BUFFER_BYTES)];
+                for (int i = 0; i < rows; i++)
+                    cells = readRow(cells, bandBytes, i * size, size, first + i);
+                Band band = new Band(first, rows, size, cells, firstLine);
+                band.fork();
+                pending.add(band);
+                // Keep a bounded number of bands in memory
+                if (pending.size() > 2 * parallelism)
+                    merge.add(pending.poll().join());
+            }
+            while (!pending.isEmpty())
+                merge.add(pending.poll().join());
+        } catch (CompletionException e) {
+            // join may wrap what a band threw once more on the way over
+            Throwable cause = e;
+            while (cause.getCause() != null && !(cause instanceof IOException))
+                cause = cause.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(e);
+        } catch (ArithmeticException e) {
+            throw new IOException("Board size " + size + " is too large for the text format");
+        } finally {
+            for (Band band : pending)
+                band.cancel(true);
+        }
+        if (skipBlankLines())
+            throw new IOException("Line " + (line + 1) + ": more rows than the board size of " + size);
+        parts.characters = merge.finish();
+        return parts;
+    }
+
+    // Refill the buffer; false at the end of the input
+    private boolean fill() throws IOException {
+        buffer.compact();
+        while (buffer.hasRemaining() && channel.read(buffer) > 0)
+            ;
+        buffer.flip();
+        return buffer.hasRemaining();
+    }
+
+    // Next byte of the input, or -1 at the end
+    private int next() throws IOException {
+        if (!buffer.hasRemaining() && !fill())
+            return -1;
+        return buffer.get() & 0xff;
+    }
+
+    /*
+     * The size, score and moveCount: three whole numbers separated by
+     * whitespace, after which the rest of their line is skipped.
+     */
+    private long[] readHeader() throws IOException {
+        String[] names = { "board size", "score", "move count" };
+        long[] values = new long[3];
+        int c = next();
+        for (int i = 0; i < values.length; i++) {
+            while (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                if (c == '\n')
+                    line++;
+                c = next();
+            }
+            StringBuilder token = new StringBuilder();
+            while (c >= 0 && c != ' ' && c != '\t' && c != '\r' && c != '\n' && token.length() < 20) {
+                token.append((char) c);
+                c = next();
+            }
+            try {
+                values[i] = Long.parseLong(token.toString());
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + (line + 1) + ": expected the " + names[i]
+                                      + ", found '" + token + "'");
+            }
+            if (i > 0 && (values[i] < Integer.MIN_VALUE || values[i] > Integer.MAX_VALUE))
+                throw new IOException("Line " + (line + 1) + ": " + names[i] + " out of range");
+        }
+        while (c >= 0 && c != '\n')
+            c = next();
+        line++;
+        return values;
+    }
+
+    /*
+     * The rows of a file, when its length is known, must hold size * size
+     * cells and a line break after all but the last row. Checking that up
+     * front reports a header claiming a huge board before anything is
+     * reserved for it.
+     */
+    private void checkLength(int size) throws IOException {
+        if (!(channel instanceof FileChannel))
+            return;
+        FileChannel file = (FileChannel) channel;
+        long left = file.size() - file.position() + buffer.remaining();
+        long needed = (long) size * (size + 1) - 1;
+        if (needed > left)
+            throw new IOException("Line " + (line + 1) + ": a board of size " + size + " needs "
+                                  + needed + " bytes of rows, the file has " + left);
+    }
+
+    /*
+     * Copy the cells of one row, checking its length. The band array is
+     * grown as rows arrive, up to bandBytes, rather than reserved whole on
+     * the word of the header.
+     *
+     * @return the band array, which may have been replaced by a larger one
+     */
+    private byte[] readRow(byte[] cells, int bandBytes, int offset, int size, int row)
+            throws IOException {
+        line++;
+        int length = 0;
+        while (true) {
+            if (!buffer.hasRemaining() && !fill()) {
+                if (length == 0)
+                    throw new IOException("Line " + line + ": the board ends after "
+                                          + row + " rows, expected " + size);
+                break;
+            }
+            // Copy straight up to the end of the line or of the buffer
+            int start = buffer.position();
+            int end = start;
+            int limit = buffer.limit();
+            byte[] array = buffer.array();
+            while (end < limit && array[end] != '\n')
+                end++;
+            int count = end - start;
+            if (count > 0 && end < limit && array[end - 1] == '\r')
+                count--;
+            if (length + count > size + 1)
+                throw new IOException("Line " + line + ": row has more than " + size + " cells");
+            if (offset + length + count >= cells.length)
+                cells = java.util.Arrays.copyOf(cells, (int) Math.min(bandBytes,
+                    Math.max(offset + length + count + 1L, 2L * cells.length)));
+            System.arraycopy(array, start, cells, offset + length, count);
+            length += count;
+            if (end < limit) {
+                buffer.position(end + 1);
+                break;
+            }
+            buffer.position(end);
+        }
+        // A '\r' split from its '\n' by a refill ends up as a cell
+        if (length == size + 1 && cells[offset + size] == '\r')
+            length--;
+        if (length != size)
+            throw new IOException("Line " + line + ": row has " + length + " cells, expected " + size);
+        return cells;
+    }
+
+    // True if anything other than whitespace follows the last row
+    private boolean skipBlankLines() throws IOException {
+        int c;
+        while ((c = next()) >= 0) {
+            if (c == '\n')
+                line++;
+            else if (c != ' ' && c != '\r' && c != '\t')
+                return true;
+        }
+        return false;
+    }
+
+
+    /*
+     * One band of rows parsed on its own: flag words for its rows and its
+     * characters in row order.
+     */
+    private static final class Band extends RecursiveTask<Band> {
+
+        private static final long serialVersionUID = 1L;
+
+        final int firstRow;
+        final int rows;
+        final int size;
+        final int wordsPerRow;
+        final long firstLine;           // Line of the board's first row
+        private byte[] cells;
+        long[] visited;
+        long[] cherries;
+        long[] walls;
+        long[] ghostCells = new long[16];
+        char[] ghostAppearances = new char[16];
+        int ghostCount;
+        long pacmanCell = -1;
+        long secondPacman = -1;
+
+        Band(int firstRow, int rows, int size, byte[] cells, long firstLine) {
+            this.firstRow = firstRow;
+            this.firstLine = firstLine;
+            this.rows = rows;
+            this.size = size;
+            this.wordsPerRow = (size + 63) >>> 6;
+            this.cells = cells;
+        }
+
+        @Override
+        protected Band compute() {
+            visited = new long[rows * wordsPerRow];
+            cherries = new long[rows * wordsPerRow];
+            walls = new long[rows * wordsPerRow];
+            for (int r = 0; r < rows; r++) {
+                int base = r * size;
+                for (int col = 0; col < size; col++) {
+                    int word = r * wordsPerRow + (col >>> 6);
+                    long bit = 1L << col;
+                    char cell = (char) cells[base + col];
+                    switch (cell) {
+                        case '*':
+                            break;
+                        case ' ':
+                            visited[word] |= bit;
+                            break;
+                        case 'P':
+                            visited[word] |= bit;
+                            pacman(r, col);
+                            break;
+                        case 'C':
+                            cherries[word] |= bit;
+                            break;
+                        case '#':
+                            walls[word] |= bit;
+                            break;
+                        case 'X':
+                            pacman(r, col);
+                            ghost(r, col, 'R');
+                            break;
+                        case 'D':
+                        case 'L':
+                        case 'R':
+                        case 'U':
+                            ghost(r, col, cell);
+                            break;
+                        default:
+                            throw new CompletionException(new IOException(
+                                "Line " + (firstLine + firstRow + r) + ", column " + (col + 1)
+                                + ": unexpected character '" + cell + "'"));
+                    }
+                }
+            }
+            cells = null;
+            return this;
+        }
+
+        private void pacman(int r, int col) {
+            long cell = (long) (firstRow + r) * size + col;
+            if (pacmanCell < 0)
+                pacmanCell = cell;
+            else if (secondPacman < 0)
+                secondPacman = cell;
+        }
+
+        private void ghost(int r, int col, char appearance) {
+            if (ghostCount == MAX_GHOSTS)
+                throw new CompletionException(new IOException(
+                    "Line " + (firstLine + firstRow + r) + ", column " + (col + 1)
+                    + ": more than " + MAX_GHOSTS + " ghosts on the board"));
+            if (ghostCount == ghostCells.length) {
+                int capacity = Math.min(ghostCount * 2, MAX_GHOSTS);
+                ghostCells = java.util.Arrays.copyOf(ghostCells, capacity);
+                ghostAppearances = java.util.Arrays.copyOf(ghostAppearances, capacity);
+            }
+            ghostCells[ghostCount] = (long) (firstRow + r) * size + col;
+            ghostAppearances[ghostCount++] = appearance;
+        }
+    }
+
+
+    // Bands folded into the board in row order
+    private static final class Merge {
+
+        private final Parts parts;
+        private final long firstLine;
+        private final ArrayDeque<Band> ghostBands = new ArrayDeque<>();
+        private long ghostCount;
+        private long pacmanCell = -1;
+
+        Merge(Parts parts, long firstLine) {
+            this.parts = parts;
+            this.firstLine = firstLine;
+        }
+
+        void add(Band band) throws IOException {
+            for (int r = 0; r < band.rows; r++) {
+                int row = band.firstRow + r;
+                for (int word = 0; word < band.wordsPerRow; word++) {
+                    int i = r * band.wordsPerRow + word;
+                    if (band.visited[i] != 0)
+                        parts.visited.setWord(row, word, band.visited[i]);
+                    if (band.cherries[i] != 0)
+                        parts.cherryMap.setWord(row, word, band.cherries[i]);
+                    if (band.walls[i] != 0)
+                        parts.walls.setWord(row, word, band.walls[i]);
+                }
+            }
+            band.visited = band.cherries = band.walls = null;
+
+            for (long cell : new long[] { band.pacmanCell, band.secondPacman }) {
+                if (cell < 0)
+                    continue;
+                if (pacmanCell >= 0)
+                    throw new IOException("More than one Pac-man: at " + describe(pacmanCell)
+                                          + " and at " + describe(cell));
+                pacmanCell = cell;
+            }
+
+            if (ghostCount + band.ghostCount > MAX_GHOSTS)
+                throw new IOException("More than " + MAX_GHOSTS + " ghosts on the board: "
+                    + describe(band.ghostCells[(int) (MAX_GHOSTS - ghostCount)]) + " holds one too many");
+            ghostCount += band.ghostCount;
+            if (band.ghostCount > 0)
+                ghostBands.add(band);
+        }
+
+        private String describe(long cell) {
+            return "line " + (cell / parts.size + firstLine) + ", column " + (cell % parts.size + 1);
+        }
+
+        // Pac-man first, then every ghost in row order
+        CharacterStore finish() throws IOException {
+            if (pacmanCell < 0)
+                throw new IOException("No Pac-man on the board: expected one 'P' or 'X'");
+            int size = parts.size;
+            CharacterStore characters = new CharacterStore((int) ghostCount + 1);
+            characters.add((int) (pacmanCell / size), (int) (pacmanCell % size), 'P');
+            for (Band band : ghostBands) {
+                for (int i = 0; i < band.ghostCount; i++) {
+                    long cell = band.ghostCells[i];
+                    characters.add((int) (cell / size), (int) (cell % size), band.ghostAppearances[i]);
+                }
+            }
+            return characters;
+        }
+    }
+}
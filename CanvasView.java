@@ -0,0 +1,112 @@
+/**
+ * CanvasView.java
+ *
+ * Draws the board onto a single Canvas instead of one node per cell. Only
+ * the cells inside a viewport that follows Pac-man are drawn, so the cost
+ * of a frame depends on the window, not on the size of the board.
+ */
+
+import javafx.geometry.Rectangle2D;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+
+
+public class CanvasView
+{
+  private static final Color COLOR_BACKGROUND = Color.rgb(95, 158, 160);
+  private static final double MIN_ZOOM = 0.1;
+  private static final double MAX_ZOOM = 4.0;
+
+  private final Canvas canvas;
+  private final SpriteAtlas atlas;
+  private double zoom = 1.0;
+
+  /*
+   * Constructor
+   *
+   * Purpose:    Create a canvas big enough for the given number of tiles
+   *             at the atlas tile size
+   */
+  public CanvasView(SpriteAtlas atlas, int columns, int rows)
+  {
+    this.atlas = atlas;
+    canvas = new Canvas(columns * atlas.getTileSize(), rows * atlas.getTileSize());
+  }
+
+  public Canvas getNode()
+  {
+    return canvas;
+  }
+
+  /*
+   * Name:      zoom
+   * Purpose:   Scale the tiles by a factor, within sensible limits
+   */
+  public void zoom(double factor)
+  {
+    zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * factor));
+  }
+
+  /*
+   * Name:      draw
+   * Purpose:   Draw the part of the board around Pac-man that fits on the
+   *            canvas at the current zoom.
+   */
+  public void draw(Board board, double pacmanAngle)
+  {
+    GraphicsContext gc = canvas.getGraphicsContext2D();
+    double width = canvas.getWidth();
+    double height = canvas.getHeight();
+    double tile = atlas.getTileSize() * zoom;
+
+    gc.setFill(COLOR_BACKGROUND);
+    gc.fillRect(0, 0, width, height);
+
+    // Top left corner of the viewport in board pixels
+    double left = camera(board.getPacmanCol(), board.GRID_SIZE, tile, width);
+    double top = camera(board.getPacmanRow(), board.GRID_SIZE, tile, height);
+
+    int firstCol = Math.max(0, (int) Math.floor(left / tile));
+    int firstRow = Math.max(0, (int) Math.floor(top / tile));
+    int lastCol = Math.min(board.GRID_SIZE - 1, (int) Math.floor((left + width) / tile));
+    int lastRow = Math.min(board.GRID_SIZE - 1, (int) Math.floor((top + height) / tile));
+
+    for (int row = firstRow; row <= lastRow; row++) {
+      for (int col = firstCol; col <= lastCol; col++) {
+        char cell = board.getCell(row, col);
+        Rectangle2D sprite = atlas.getViewport(cell);
+        double x = col * tile - left;
+        double y = row * tile - top;
+
+        if (cell == 'P' && pacmanAngle != 0) {
+          // Rotate the pacman sprite around its own centre
+          gc.save();
+          gc.translate(x + tile / 2, y + tile / 2);
+          gc.rotate(pacmanAngle);
+          gc.drawImage(atlas.getImage(), sprite.getMinX(), sprite.getMinY(),
+                       sprite.getWidth(), sprite.getHeight(),
+                       -tile / 2, -tile / 2, tile, tile);
+          gc.restore();
+        } else {
+          gc.drawImage(atlas.getImage(), sprite.getMinX(), sprite.getMinY(),
+                       sprite.getWidth(), sprite.getHeight(), x, y, tile, tile);
+        }
+      }
+    }
+  }
+
+  /*
+   * Centre the viewport on Pac-man's cell along one axis, without scrolling
+   * past the edges of the board. A board smaller than the viewport is
+   * centred instead.
+   */
+  private static double camera(int pacman, int gridSize, double tile, double extent)
+  {
+    double boardExtent = gridSize * tile;
+    if (boardExtent <= extent)
+      return (boardExtent - extent) / 2;
+    double position = (pacman + 0.5) * tile - extent / 2;
+    return Math.max(0, Math.min(boardExtent - extent, position));
+  }
+}
@@ -0,0 +1,82 @@
+import java.util.Arrays;
+
+/**
+ * Positions and appearances of every character on a board, kept in
+ * parallel primitive arrays and addressed by index. Updating all of them
+ * is a sequential walk over a few arrays with nothing allocated.
+ */
+public class CharacterStore {
+
+    private int[] rows;
+    private int[] cols;
+    private char[] appearances;
+    private int size;
+
+    public CharacterStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        rows = new int[capacity];
+        cols = new int[capacity];
+        appearances = new char[capacity];
+    }
+
+    // Append a character and return its index
+    public int add(int row, int col, char appearance) {
+        if (size == rows.length) {
+            int capacity = size * 2;
+            rows = Arrays.copyOf(rows, capacity);
+            cols = Arrays.copyOf(cols, capacity);
+            appearances = Arrays.copyOf(appearances, capacity);
+        }
+        rows[size] = row;
+        cols[size] = col;
+        appearances[size] = appearance;
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getRow(int index) {
+        return rows[index];
+    }
+
+    public int getCol(int index) {
+        return cols[index];
+    }
+
+    public char getAppearance(int index) {
+        return appearances[index];
+    }
+
+    public void setPosition(int index, int row, int col) {
+        rows[index] = row;
+        cols[index] = col;
+    }
+
+    public void setAppearance(int index, char appearance) {
+        appearances[index] = appearance;
+    }
+
+    public CharacterStore copy() {
+        CharacterStore copy = new CharacterStore(size);
+        copy.rows = Arrays.copyOf(rows, rows.length);
+        copy.cols = Arrays.copyOf(cols, cols.length);
+        copy.appearances = Arrays.copyOf(appearances, appearances.length);
+        copy.size = size;
+        return copy;
+    }
+
+    // Make this store equal to another one, reusing its arrays when they are big enough
+    public void copyFrom(CharacterStore other) {
+        if (rows.length < other.size) {
+            rows = new int[other.size];
+            cols = new int[other.size];
+            appearances = new char[other.size];
+        }
+        System.arraycopy(other.rows, 0, rows, 0, other.size);
+        System.arraycopy(other.cols, 0, cols, 0, other.size);
+        System.arraycopy(other.appearances, 0, appearances, 0, other.size);
+        size = other.size;
+    }
+}
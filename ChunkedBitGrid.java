@@ -0,0 +1,182 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.Arrays;
+
+/**
+ * A BitGrid for boards too big to hold densely. The grid is cut into
+ * chunks of 64 x 64 cells, one word from each of 64 rows, and a chunk is
+ * only allocated when a flag in it is first set. Chunks live back to back
+ * in one pool of words and are found through a LongHashMap from the
+ * chunk's key to its place in the pool, so nothing is boxed. A chunk that
+ * is cleared again stays allocated.
+ *
+ * Lookups remember the last chunk found, which is nearly always the one
+ * asked for next as Pac-man walks about. The remembered slot is checked
+ * against the chunk's key before use, so threads that only read the grid
+ * may share it.
+ */
+public class ChunkedBitGrid extends BitGrid {
+
+    private static final int CHUNK_SHIFT = 6;
+    private static final int CHUNK_ROWS = 1 << CHUNK_SHIFT;
+    private static final int NONE = -1;
+
+    private final LongHashMap slots = new LongHashMap(NONE); // Chunk key -> slot
+    private long[] keys = new long[16];         // Slot -> chunk key
+    private long[] pool = new long[16 * CHUNK_ROWS];
+    private int chunkCount;
+    private int lastSlot = NONE;
+
+    public ChunkedBitGrid(int size) {
+        super(size);
+    }
+
+    // Chunks are numbered row band by row band, word by word
+    private long key(int row, int word) {
+        return (long) (row >>> CHUNK_SHIFT) * wordsPerRow + word;
+    }
+
+    private int find(long key) {
+        int slot = lastSlot;
+        if (slot != NONE && keys[slot] == key)
+            return slot;
+        slot = (int) slots.get(key);
+        if (slot != NONE)
+            lastSlot = slot;
+        return slot;
+    }
+
+    private int allocate(long key) {
+        if (chunkCount == keys.length) {
+            keys = Arrays.copyOf(keys, chunkCount * 2);
+            pool = Arrays.copyOf(pool, chunkCount * 2 * CHUNK_ROWS);
+        }
+        int slot = chunkCount++;
+        keys[slot] = key;
+        slots.put(key, slot);
+        lastSlot = slot;
+        return slot;
+    }
+
+    private static int index(int slot, int row) {
+        return (slot << CHUNK_SHIFT) + (row & (CHUNK_ROWS - 1));
+    }
+
+    @Override
+    public boolean get(int row, int col) {
+        int slot = find(key(row, col >>> 6));
+        return slot != NONE && (pool[index(slot, row)] & (1L << col)) != 0;
+    }
+
+    @Override
+    public void set(int row, int col) {
+        long key = key(row, col >>> 6);
+        int slot = find(key);
+        if (slot == NONE)
+            slot = allocate(key);
+        pool[index(slot, row)] |= 1L << col;
+    }
+
+    @Override
+    public void clear(int row, int col) {
+        int slot = find(key(row, col >>> 6));
+        if (slot != NONE)
+            pool[index(slot, row)] &= ~(1L << col);
+    }
+
+    @Override
+    public long getWord(int row, int word) {
+        int slot = find(key(row, word));
+        return slot == NONE ? 0 : pool[index(slot, row)];
+    }
+
+    @Override
+    public void setWord(int row, int word, long bits) {
+        long key = key(row, word);
+        int slot = find(key);
+        if (slot == NONE) {
+            if (bits == 0)
+                return;
+            slot = allocate(key);
+        }
+        pool[index(slot, row)] = bits;
+    }
+
+    @Override
+    public long getStoredWords() {
+        return (long) chunkCount * CHUNK_ROWS;
+    }
+
+    // The pool is read afresh for every word, so the visitor may allocate chunks
+    @Override
+    public void forEachWord(WordVisitor visitor) {
+        int count = chunkCount;
+        for (int slot = 0; slot < count; slot++) {
+            long key = keys[slot];
+            int firstRow = (int) (key / wordsPerRow) << CHUNK_SHIFT;
+            int word = (int) (key % wordsPerRow);
+            int rows = Math.min(CHUNK_ROWS, size - firstRow);
+            for (int i = 0; i < rows; i++)
+                visitor.visit(firstRow + i, word, pool[(slot << CHUNK_SHIFT) + i]);
+        }
+    }
+
+    @Override
+    protected boolean isStored(int row, int word) {
+        return find(key(row, word)) != NONE;
+    }
+
+    @Override
+    public BitGrid copy() {
+        ChunkedBitGrid copy = new ChunkedBitGrid(size);
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    @Override
+    public void copyFrom(BitGrid other) {
+        ChunkedBitGrid source = (ChunkedBitGrid) other;
+        if (keys.length < source.chunkCount) {
+            keys = Arrays.copyOf(source.keys, source.keys.length);
+            pool = Arrays.copyOf(source.pool, source.pool.length);
+        } else {
+            System.arraycopy(source.keys, 0, keys, 0, source.chunkCount);
+            System.arraycopy(source.pool, 0, pool, 0, source.chunkCount * CHUNK_ROWS);
+        }
+        chunkCount = source.chunkCount;
+        slots.clear();
+        for (int slot = 0; slot < chunkCount; slot++)
+            slots.put(keys[slot], slot);
+        lastSlot = NONE;
+    }
+
+    @Override
+    public long cardinality() {
+        long count = 0;
+        for (int i = 0; i < chunkCount * CHUNK_ROWS; i++)
+            count += Long.bitCount(pool[i]);
+        return count;
+    }
+
+    /*
+     * Rows are written a band of 64 at a time: the chunks of the band are
+     * looked up once, then each row of the band is read from them in turn.
+     */
+    @Override
+    public void writeTo(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int[] band = new int[wordsPerRow];
+        for (int first = 0; first < size; first += CHUNK_ROWS) {
+            for (int word = 0; word < wordsPerRow; word++)
+                band[word] = (int) slots.get(key(first, word));
+            int last = Math.min(size, first + CHUNK_ROWS);
+            for (int row = first; row < last; row++) {
+                for (int word = 0; word < wordsPerRow; word++) {
+                    if (buffer.remaining() < 8)
+                        flush(channel, buffer);
+                    buffer.putLong(band[word] == NONE ? 0 : pool[index(band[word], row)]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * A BitGrid holding every word in one array, for grids of up to
+ * BitGrid.DENSE_LIMIT cells.
+ */
+public class DenseBitGrid extends BitGrid {
+
+    private final long[] words;
+
+    public DenseBitGrid(int size) {
+        super(size);
+        this.words = new long[size * wordsPerRow];
+    }
+
+    @Override
+    public boolean get(int row, int col) {
+        return (words[row * wordsPerRow + (col >>> 6)] & (1L << col)) != 0;
+    }
+
+    @Override
+    public void set(int row, int col) {
+        words[row * wordsPerRow + (col >>> 6)] |= 1L << col;
+    }
+
+    @Override
+    public void clear(int row, int col) {
+        words[row * wordsPerRow + (col >>> 6)] &= ~(1L << col);
+    }
+
+    @Override
+    public long getWord(int row, int word) {
+        return words[row * wordsPerRow + word];
+    }
+
+    @Override
+    public void setWord(int row, int word, long bits) {
+        words[row * wordsPerRow + word] = bits;
+    }
+
+    @Override
+    public long getStoredWords() {
+        return words.length;
+    }
+
+    @Override
+    public void forEachWord(WordVisitor visitor) {
+        int i = 0;
+        for (int row = 0; row < size; row++) {
+            for (int word = 0; word < wordsPerRow; word++)
+                visitor.visit(row, word, words[i++]);
+        }
+    }
+
+    @Override
+    protected boolean isStored(int row, int word) {
+        return true;
+    }
+
+    @Override
+    public BitGrid copy() {
+        DenseBitGrid copy = new DenseBitGrid(size);
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    @Override
+    public void copyFrom(BitGrid other) {
+        System.arraycopy(((DenseBitGrid) other).words, 0, words, 0, words.length);
+    }
+
+    @Override
+    public long cardinality() {
+        long count = 0;
+        for (long word : words)
+            count += Long.bitCount(word);
+        return count;
+    }
+
+    @Override
+    public void forEachDifference(BitGrid other, WordVisitor visitor) {
+        if (!(other instanceof DenseBitGrid)) {
+            super.forEachDifference(other, visitor);
+            return;
+        }
+        long[] target = ((DenseBitGrid) other).words;
+        for (int i = 0; i < words.length; i++) {
+            long diff = words[i] ^ target[i];
+            if (diff != 0)
+                visitor.visit(i / wordsPerRow, i % wordsPerRow, diff);
+        }
+    }
+
+    // The words are already in file order, so they go out in bulk
+    @Override
+    public void writeTo(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int next = 0;
+        while (next < words.length) {
+            if (buffer.remaining() < 8)
+                flush(channel, buffer);
+            int count = Math.min(buffer.remaining() / 8, words.length - next);
+            buffer.asLongBuffer().put(words, next, count);
+            buffer.position(buffer.position() + count * 8);
+            next += count;
+        }
+    }
+
+    @Override
+    public long readFrom(FileChannel channel, long position) throws IOException {
+        int next = 0;
+        while (next < words.length) {
+            int count = Math.min(MAP_WINDOW / 8, words.length - next);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) count * 8);
+            window.asLongBuffer().get(words, next, count);
+            position += (long) count * 8;
+            next += count;
+        }
+        return position;
+    }
+}
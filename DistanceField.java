@@ -0,0 +1,39 @@
+/**
+ * Walking distance from every cell to Pac-man, shared by all ghosts.
+ *
+ * The field is refreshed once per tick from Pac-man's position, after
+ * which any number of ghosts pick their step by looking up the distance
+ * of their neighbours. On the open board the shortest walk is the
+ * Manhattan distance, so the field is evaluated straight from Pac-man's
+ * position and moving him one cell costs nothing to update.
+ * Boards with walls use MazeDistanceField instead.
+ */
+public class DistanceField {
+
+    private final int size;
+    private int targetRow;
+    private int targetCol;
+
+    public DistanceField(int size) {
+        this.size = size;
+    }
+
+    // Pac-man has moved; called once per tick
+    public void update(int row, int col) {
+        targetRow = row;
+        targetCol = col;
+    }
+
+    public int distance(int row, int col) {
+        return Math.abs(row - targetRow) + Math.abs(col - targetCol);
+    }
+
+    // True if a step from the cell in the direction gets one closer to Pac-man
+    public boolean isDownhill(int row, int col, Direction direction) {
+        int nextRow = row + direction.getY();
+        int nextCol = col + direction.getX();
+        if (nextRow < 0 || nextCol < 0 || nextRow >= size || nextCol >= size)
+            return false;
+        return distance(nextRow, nextCol) == distance(row, col) - 1;
+    }
+}
@@ -0,0 +1,181 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.Arrays;
+
+/**
+ * Reads a frame stream written by FrameWriter to a file, frame by frame,
+ * and hands each to a FrameVisitor.
+ *
+ * seek goes to the last keyframe at or before a frame, so a spectator
+ * can start anywhere and play the deltas on from there. Keyframes are
+ * found by skipping from frame header to frame header, once: their
+ * places are remembered, and only the part of the file written since the
+ * last seek is scanned again, so a file that is still growing can be
+ * followed.
+ *
+ * Deltas are read into a buffer owned by the reader and reused.
+ */
+public class FrameReader implements Closeable {
+
+    // Receives the frames of a stream
+    public interface FrameVisitor {
+        // A whole board; the deltas that follow apply to it
+        void keyframe(long frame, Board board);
+
+        // Start of a delta, followed by its cells and characters
+        void delta(long frame, int score, int status);
+
+        void cell(int row, int col, char cell);
+
+        // A character moved; 0 is Pac-man, ghosts are 1 and up
+        void character(int index, int row, int col);
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(FrameWriter.FRAME_HEADER_BYTES);
+    private ByteBuffer payload = ByteBuffer.allocate(1 << 10);
+    private long position = FrameWriter.HEADER_BYTES; // Offset of the next frame
+    private int size;               // Size of the board of the last keyframe
+
+    // Keyframes found so far and how far the file has been scanned for them
+    private long[] keyframes = new long[16];
+    private long[] keyframeOffsets = new long[16];
+    private int keyframeCount;
+    private long scanned = FrameWriter.HEADER_BYTES;
+
+    public FrameReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer start = ByteBuffer.allocate(FrameWriter.HEADER_BYTES);
+        if (!readFully(start, 0) || start.getInt() != FrameWriter.MAGIC
+            || start.getInt() != FrameWriter.VERSION)
+            throw new IOException("Not a frame stream");
+    }
+
+    /*
+     * Read the next frame and pass it to the visitor.
+     *
+     * @return false at the end of the stream, or at a frame that has not
+     *         been written out completely yet
+     */
+    public boolean next(FrameVisitor visitor) throws IOException {
+        header.clear();
+        if (!readFully(header, position))
+            return false;
+        byte kind = header.get();
+        long frame = header.getLong();
+        long length = header.getLong();
+        long start = position + FrameWriter.FRAME_HEADER_BYTES;
+        if (length < 0 || channel.size() - start < length)
+            return false;
+
+        if (kind == FrameWriter.KEYFRAME) {
+            Board board = new Board(channel, start);
+            size = board.GRID_SIZE;
+            visitor.keyframe(frame, board);
+        } else if (kind == FrameWriter.DELTA) {
+            if (size == 0)
+                throw new IOException("Delta " + frame + " comes before any keyframe");
+            readDelta(frame, start, length, visitor);
+        } else {
+            throw new IOException("Unknown frame kind " + kind + " at offset " + position);
+        }
+        position = start + length;
+        return true;
+    }
+
+    private void readDelta(long frame, long start, long length, FrameVisitor visitor) throws IOException {
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Delta " + frame + " is " + length + " bytes long");
+        if (payload.capacity() < length)
+            payload = ByteBuffer.allocate((int) Math.max(length, Math.min(Integer.MAX_VALUE, 2L * payload.capacity())));
+        payload.clear().limit((int) length);
+        if (!readFully(payload, start))
+            throw new IOException("Delta " + frame + " is truncated");
+
+        try {
+            visitor.delta(frame, payload.getInt(), payload.get());
+            long cell = 0;
+            for (long i = getVarLong(payload); i > 0; i--) {
+                cell += getVarLong(payload);
+                visitor.cell((int) (cell / size), (int) (cell % size), (char) (payload.get() & 0xFF));
+            }
+            int index = 0;
+            for (long i = getVarLong(payload); i > 0; i--) {
+                index += (int) getVarLong(payload);
+                cell = getVarLong(payload);
+                visitor.character(index, (int) (cell / size), (int) (cell % size));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Delta " + frame + " is malformed");
+        }
+    }
+
+    /*
+     * Go to the last keyframe at or before a frame, or the first keyframe
+     * if there is none before it. The next call to next reads it.
+     *
+     * @return the number of the keyframe, or -1 if the stream has none yet
+     */
+    public long seek(long frame) throws IOException {
+        scanKeyframes();
+        if (keyframeCount == 0)
+            return -1;
+        int found = Arrays.binarySearch(keyframes, 0, keyframeCount, frame);
+        if (found < 0)
+            found = Math.max(0, -found - 2);
+        position = keyframeOffsets[found];
+        return keyframes[found];
+    }
+
+    // Extend the keyframe index over frames written since the last scan
+    private void scanKeyframes() throws IOException {
+        while (true) {
+            header.clear();
+            if (!readFully(header, scanned))
+                return;
+            byte kind = header.get();
+            long frame = header.getLong();
+            long length = header.getLong();
+            long next = scanned + FrameWriter.FRAME_HEADER_BYTES + length;
+            if (length < 0 || next > channel.size())
+                return;
+            if (kind == FrameWriter.KEYFRAME) {
+                if (keyframeCount == keyframes.length) {
+                    keyframes = Arrays.copyOf(keyframes, keyframeCount * 2);
+                    keyframeOffsets = Arrays.copyOf(keyframeOffsets, keyframeCount * 2);
+                }
+                keyframes[keyframeCount] = frame;
+                keyframeOffsets[keyframeCount++] = scanned;
+            }
+            scanned = next;
+        }
+    }
+
+    // Fill the buffer from the offset and flip it; false if the file ends first
+    private boolean readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset);
+            if (read < 0)
+                return false;
+            offset += read;
+        }
+        buffer.flip();
+        return true;
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Writes a game as a stream of frames that spectators can follow without
+ * ever seeing the Board itself.
+ *
+ *   header    magic, version
+ *   frame     kind, frame number, payload length, payload
+ *   keyframe  a whole binary board (see Board.writeBinary)
+ *   delta     score, status, then the cells the move changed, each as
+ *             the gap from the previous cell's row * size + col and its
+ *             character, then the characters that moved, each as the gap
+ *             from the previous index and its new row * size + col
+ *
+ * Counts and gaps are unsigned varints, seven bits to a byte. A delta
+ * only holds what its move changed, so a frame costs a few bytes per
+ * changed cell whatever the size of the board. Every keyframeInterval
+ * frames, and whenever a different board is handed in, a keyframe is
+ * written instead, so a reader can start from any keyframe; see
+ * FrameReader.
+ *
+ * Frames are built in buffers owned by the writer and reused, so writing
+ * one allocates nothing once the buffers have grown to the largest move.
+ */
+public class FrameWriter implements Closeable {
+
+    static final int MAGIC = 0x50414346;      // "PACF"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    static final int FRAME_HEADER_BYTES = 17;
+    static final byte KEYFRAME = 0;
+    static final byte DELTA = 1;
+
+    // Game status carried by every delta
+    public static final byte RUNNING = 0;
+    public static final byte CAUGHT = 1;
+    public static final byte WON = 2;
+
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 256;
+
+    private static final int MAX_VARINT_BYTES = 10;
+
+    private final WritableByteChannel channel;
+    private final int keyframeInterval;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+    private ByteBuffer delta = ByteBuffer.allocate(1 << 10);
+
+    private Board board;            // Board of the last frame
+    private long[] characterCells = new long[0]; // row * size + col of each character, as last written
+    private long frame;             // Number of the next frame
+    private long lastKeyframe;
+
+    public FrameWriter(WritableByteChannel channel, int keyframeInterval) throws IOException {
+        if (keyframeInterval < 1)
+            throw new IllegalArgumentException("Keyframe interval must be at least 1");
+        this.channel = channel;
+        this.keyframeInterval = keyframeInterval;
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+    }
+
+    public FrameWriter(OutputStream out, int keyframeInterval) throws IOException {
+        this(Channels.newChannel(out), keyframeInterval);
+    }
+
+    /*
+     * Write the board as it stands after a move, undo or rewind. Call it
+     * after every one of them: a delta only covers the last.
+     */
+    public void write(Board board) throws IOException {
+        if (board != this.board || frame - lastKeyframe >= keyframeInterval)
+            writeKeyframe(board);
+        else
+            writeDelta(board);
+    }
+
+    // Write the whole board, e.g. when a spectator joins
+    public void writeKeyframe(Board board) throws IOException {
+        long length = board.getBinaryLength();
+        if (buffer.remaining() < FRAME_HEADER_BYTES)
+            flush();
+        buffer.put(KEYFRAME);
+        buffer.putLong(frame);
+        buffer.putLong(length);
+        board.writeBinary(channel, buffer);
+
+        int count = board.getGhostCount() + 1;
+        if (characterCells.length != count)
+            characterCells = new long[count];
+        for (int i = 0; i < count; i++)
+            characterCells[i] = cellKey(board, board.getCharacterRow(i), board.getCharacterCol(i));
+        this.board = board;
+        lastKeyframe = frame++;
+    }
+
+    private void writeDelta(Board board) throws IOException {
+        delta.clear();
+        delta.putInt(board.getScore());
+        delta.put(board.isWon() ? WON : board.isCaught() ? CAUGHT : RUNNING);
+
+        int changed = board.sortChangedCells();
+        ensureDelta((long) changed * (MAX_VARINT_BYTES + 1) + MAX_VARINT_BYTES);
+        putVarLong(delta, changed);
+        long previous = 0;
+        for (int i = 0; i < changed; i++) {
+            long cell = board.getChangedCell(i);
+            putVarLong(delta, cell - previous);
+            delta.put((byte) board.getCell((int) (cell / board.GRID_SIZE), (int) (cell % board.GRID_SIZE)));
+            previous = cell;
+        }
+
+        int moved = 0;
+        for (int i = 0; i < characterCells.length; i++) {
+            if (characterCells[i] != cellKey(board, board.getCharacterRow(i), board.getCharacterCol(i)))
+                moved++;
+        }
+        ensureDelta((long) moved * 2 * MAX_VARINT_BYTES + MAX_VARINT_BYTES);
+        putVarLong(delta, moved);
+        int previousIndex = 0;
+        for (int i = 0; i < characterCells.length; i++) {
+            long cell = cellKey(board, board.getCharacterRow(i), board.getCharacterCol(i));
+            if (characterCells[i] != cell) {
+                putVarLong(delta, i - previousIndex);
+                putVarLong(delta, cell);
+                characterCells[i] = cell;
+                previousIndex = i;
+            }
+        }
+
+        delta.flip();
+        if (buffer.remaining() < FRAME_HEADER_BYTES)
+            flush();
+        buffer.put(DELTA);
+        buffer.putLong(frame++);
+        buffer.putLong(delta.remaining());
+        if (delta.remaining() > buffer.remaining()) {
+            flush();
+            while (delta.hasRemaining())
+                channel.write(delta);
+        } else {
+            buffer.put(delta);
+        }
+    }
+
+    private static long cellKey(Board board, int row, int col) {
+        return (long) row * board.GRID_SIZE + col;
+    }
+
+    // Grow the delta buffer, keeping what it holds, to fit more bytes
+    private void ensureDelta(long bytes) {
+        if (delta.remaining() >= bytes)
+            return;
+        long needed = delta.position() + bytes;
+        if (needed > Integer.MAX_VALUE)
+            throw new IllegalStateException("Move changed too many cells for one frame");
+        ByteBuffer grown = ByteBuffer.allocate((int) Math.max(needed, Math.min(Integer.MAX_VALUE, 2L * delta.capacity())));
+        delta.flip();
+        grown.put(delta);
+        delta = grown;
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    // Push everything written so far to the channel
+    public void flush() throws IOException {
+        BitGrid.flush(channel, buffer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
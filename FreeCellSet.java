@@ -0,0 +1,79 @@
+/**
+ * The cells a cherry may appear on, as a sparse set: the first size
+ * entries of cells are the members in no particular order, and slots
+ * gives the index of every cell in cells. Adding, removing, testing and
+ * picking a member at random are all constant time, however full the
+ * board is.
+ *
+ * It takes two ints per cell, so boards with more than MAX_CELLS cells
+ * go without one.
+ */
+public class FreeCellSet {
+
+    public static final long MAX_CELLS = 1 << 20;
+
+    private final int[] cells;      // Members first, then the rest
+    private final int[] slots;      // Cell -> its index in cells
+    private int size;
+
+    // A set holding every cell
+    public FreeCellSet(int cellCount) {
+        cells = new int[cellCount];
+        slots = new int[cellCount];
+        for (int i = 0; i < cellCount; i++) {
+            cells[i] = i;
+            slots[i] = i;
+        }
+        size = cellCount;
+    }
+
+    private FreeCellSet(FreeCellSet other) {
+        cells = other.cells.clone();
+        slots = other.slots.clone();
+        size = other.size;
+    }
+
+    // An independent set with the same members
+    public FreeCellSet copy() {
+        return new FreeCellSet(this);
+    }
+
+    // Make this set equal to another one over the same cells
+    public void copyFrom(FreeCellSet other) {
+        System.arraycopy(other.cells, 0, cells, 0, cells.length);
+        System.arraycopy(other.slots, 0, slots, 0, slots.length);
+        size = other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int cell) {
+        return slots[cell] < size;
+    }
+
+    // The member at an index below size
+    public int get(int index) {
+        return cells[index];
+    }
+
+    public void add(int cell) {
+        if (!contains(cell))
+            swap(cell, cells[size++]);
+    }
+
+    public void remove(int cell) {
+        if (contains(cell))
+            swap(cell, cells[--size]);
+    }
+
+    private void swap(int a, int b) {
+        int slotA = slots[a];
+        int slotB = slots[b];
+        cells[slotA] = b;
+        cells[slotB] = a;
+        slots[a] = slotB;
+        slots[b] = slotA;
+    }
+}
@@ -0,0 +1,376 @@
+/**
+ * GameLoop.java
+ *
+ * Runs the game on its own thread. Key presses arrive through a lock-free
+ * queue of Directions, and after every tick an immutable Frame describing
+ * what changed is published for the renderer to pick up.
+ *
+ * A new game is a fresh board of the same size, or, given a layout, a
+ * copy of the layout as it was loaded.
+ *
+ * With a tick rate the board advances at that fixed rate whether or not a
+ * key was pressed: Pac-man keeps going the way he was last sent and the
+ * ghosts keep chasing him. Without one, every accepted key press is one
+ * tick, as in the original game.
+ *
+ * The board is only modified while holding its monitor, so other threads
+ * may read it consistently with synchronized (board).
+ *
+ * Given a ReplayRecorder, the move played on every tick is logged so the
+ * session can be replayed and verified later with ReplayVerifier.
+ *
+ * With an autopilot the policy picks a move whenever no key was pressed.
+ * Only a raw snapshot of the board is taken under the lock; the copy is
+ * indexed and searched after it has been let go.
+ * Without a tick rate it then plays as fast as the policy decides.
+ *
+ * Every tick is timed into Metrics.TICK and emitted as a JFR TickEvent,
+ * and the board played is the only one whose moves feed Metrics.MOVE, so
+ * autopilot searches on copies do not count as ticks.
+ * With metrics on, a Frame also carries when the key that caused it was
+ * pressed, so the renderer can time the whole way to the screen.
+ */
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class GameLoop implements Runnable
+{
+  // Ticks we are willing to run back to back to catch up after a stall
+  private static final int MAX_CATCH_UP_TICKS = 5;
+
+  private final ConcurrentLinkedQueue<Direction> input = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<Frame> frames = new ConcurrentLinkedQueue<>();
+  private final long tickNanos;       // 0 means one tick per key press
+  private final Thread thread;
+  private final SplittableRandom random; // Shared by every board this loop plays
+  private ReplayRecorder recorder;    // null when the session is not recorded
+  private MovePolicy autopilot;       // null when only the player moves Pac-man
+  private Board layout;               // New games start as copies of this, if set
+  private final Random policyRandom = new Random();
+
+  private volatile boolean running = true;
+  private volatile boolean restartRequested;
+  private volatile Board board;        // Replaced only by the loop thread
+  private Direction heading = Direction.STAY;
+  private long tick;
+  private volatile long keyNanos;     // When the last key was submitted, with metrics on
+
+  /*
+   * Constructor
+   *
+   * Purpose:    Prepare a loop for the board. Call start to run it.
+   * Parameter:  The board to play and the ticks per second, 0 for one
+   *             tick per key press
+   */
+  public GameLoop(Board board, int ticksPerSecond)
+  {
+    this(board, ticksPerSecond, new SplittableRandom(), null);
+  }
+
+  /*
+   * Constructor
+   *
+   * Purpose:    Prepare a loop that records what it plays.
+   * Parameter:  The board to play, the ticks per second, the random
+   *             numbers the board was given and the recorder, or null for none
+   */
+  public GameLoop(Board board, int ticksPerSecond, SplittableRandom random, ReplayRecorder recorder)
+  {
+    this.board = board;
+    this.random = random;
+    this.recorder = recorder;
+    this.tickNanos = ticksPerSecond > 0 ? 1_000_000_000L / ticksPerSecond : 0;
+    board.setInstrumented(true);
+    Metrics.gameStarted(board.GRID_SIZE);
+    thread = new Thread(this, "game-loop");
+    thread.setDaemon(true);
+  }
+
+  // Let a policy play whenever no key was pressed. Call before start.
+  public void setAutopilot(MovePolicy autopilot)
+  {
+    this.autopilot = autopilot;
+  }
+
+  /*
+   * Start every new game as a copy of a board, e.g. a loaded level,
+   * instead of generating one. The board is copied, so it may be the one
+   * given to the constructor as long as it has not been played. Call
+   * before start.
+   */
+  public void setLayout(Board layout)
+  {
+    this.layout = layout.copy();
+  }
+
+  public void start()
+  {
+    thread.start();
+  }
+
+  // Stop the loop and wait for it to finish writing the replay log
+  public void stop()
+  {
+    running = false;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Queue a move from the player. Safe to call from any thread.
+  public void submit(Direction direction)
+  {
+    if (Metrics.ENABLED)
+      keyNanos = System.nanoTime();
+    input.add(direction);
+    LockSupport.unpark(thread);
+  }
+
+  // Start a new game of the same size once the current one is over
+  public void restart()
+  {
+    restartRequested = true;
+    LockSupport.unpark(thread);
+  }
+
+  // The board being played, which changes when a new game starts
+  public Board getBoard()
+  {
+    return board;
+  }
+
+  // Next published frame, or null if the renderer has seen them all
+  public Frame pollFrame()
+  {
+    return frames.poll();
+  }
+
+
+  @Override
+  public void run()
+  {
+    try {
+      play();
+    } finally {
+      closeRecorder();
+    }
+  }
+
+  private void play()
+  {
+    long next = System.nanoTime();
+    while (running) {
+      if (restartRequested) {
+        restartRequested = false;
+        restartGame();
+      }
+
+      if (tickNanos == 0) {
+        Direction requested = nextRequest();
+        if (requested == null)
+          LockSupport.park(this);
+        else
+          tick(requested);
+        continue;
+      }
+
+      long now = System.nanoTime();
+      if (now < next) {
+        LockSupport.parkNanos(this, next - now);
+        continue;
+      }
+      tick(nextRequest());
+      next += tickNanos;
+      // After a long stall skip ahead instead of replaying every missed tick
+      if (now - next > MAX_CATCH_UP_TICKS * tickNanos)
+        next = now;
+    }
+  }
+
+  // The player's next key press, or else the autopilot's choice
+  private Direction nextRequest()
+  {
+    Direction requested = input.poll();
+    if (requested != null || autopilot == null)
+      return requested;
+    Board.Snapshot snapshot;
+    synchronized (board) {
+      if (board.isGameOver())
+        return null;
+      snapshot = board.snapshot();
+    }
+    return autopilot.nextMove(snapshot.toBoard(), policyRandom);
+  }
+
+  /*
+   * Name:      tick
+   * Purpose:   Advance the board once and publish what changed.
+   */
+  private void tick(Direction requested)
+  {
+    TickEvent event = new TickEvent();
+    event.begin();
+    long start = Metrics.now();
+    Frame frame;
+    synchronized (board) {
+      if (board.isGameOver())
+        return;
+
+      Direction played;
+      long pressed = 0;
+      if (requested != null && board.tryMove(requested)) {
+        heading = played = requested;
+        pressed = keyNanos;
+        keyNanos = 0;
+      } else if (tickNanos == 0) {
+        return; // One tick per key press, and this key led nowhere
+      } else if (board.tryMove(heading)) {
+        played = heading;
+      } else {
+        board.tryMove(Direction.STAY); // Pac-man is stuck, the ghosts are not
+        played = Direction.STAY;
+      }
+      if (recorder != null) {
+        try {
+          recorder.record(played);
+        } catch (IOException e) {
+          stopRecording(e);
+        }
+      }
+      frame = new Frame(board, ++tick, heading, false, pressed);
+      Metrics.TICK.since(start);
+      event.end();
+      if (event.shouldCommit()) {
+        event.tick = frame.tick;
+        event.direction = played.name();
+        event.score = frame.score;
+        event.changedCells = frame.getChangedCount();
+        event.gameOver = frame.gameOver;
+        event.commit();
+      }
+    }
+    frames.add(frame);
+  }
+
+  private void restartGame()
+  {
+    synchronized (board) {
+      if (!board.isGameOver())
+        return;
+    }
+    input.clear();
+    if (layout != null) {
+      board = layout.copy();
+      board.setRandom(random);
+    } else {
+      board = new Board(board.GRID_SIZE, board.getGhostCount(), random);
+    }
+    board.setInstrumented(true);
+    Metrics.gameStarted(board.GRID_SIZE);
+    heading = Direction.STAY;
+    if (recorder != null) {
+      try {
+        recorder.recordRestart();
+      } catch (IOException e) {
+        stopRecording(e);
+      }
+    }
+    synchronized (board) {
+      frames.add(new Frame(board, ++tick, heading, true, 0));
+    }
+  }
+
+  // Finish the log with the final board so the replay can be checked
+  private void closeRecorder()
+  {
+    if (recorder == null)
+      return;
+    try {
+      synchronized (board) {
+        recorder.close(board);
+      }
+    } catch (IOException e) {
+      System.out.println("IOException while closing the replay log: " + e.getMessage());
+    }
+    recorder = null;
+  }
+
+  private void stopRecording(IOException e)
+  {
+    System.out.println("IOException while recording, recording stopped: " + e.getMessage());
+    try {
+      recorder.close();
+    } catch (IOException ignored) {
+    }
+    recorder = null;
+  }
+
+
+  /*
+   * Name:      Frame
+   * Purpose:   What one tick did to the board, captured while the loop
+   *            held the board so it can be rendered later on another thread.
+   *            It holds no reference to the board, which goes on changing;
+   *            on a redraw read the new one from getBoard, under its lock.
+   */
+  public static final class Frame
+  {
+    public final int gridSize;         // Side length of the board this frame belongs to
+    public final long tick;
+    public final int score;
+    public final long remainingDots;
+    public final boolean gameOver;
+    public final boolean won;          // The game ended with every dot eaten
+    public final Direction heading;    // Way Pac-man is facing
+    public final boolean redraw;       // A new board: every cell is stale
+    public final long keyNanos;        // nanoTime of the key press behind it, 0 if none
+    private final long[] cells;        // row * GRID_SIZE + col
+    private final char[] appearances;
+
+    Frame(Board board, long tick, Direction heading, boolean redraw, long keyNanos)
+    {
+      this.gridSize = board.GRID_SIZE;
+      this.tick = tick;
+      this.score = board.getScore();
+      this.remainingDots = board.getRemainingDots();
+      this.gameOver = board.isGameOver();
+      this.won = board.isWon();
+      this.heading = heading;
+      this.redraw = redraw;
+      this.keyNanos = keyNanos;
+      cells = redraw ? new long[0] : board.getChangedCells();
+      appearances = new char[cells.length];
+      for (int i = 0; i < cells.length; i++)
+        appearances[i] = board.getCell((int) (cells[i] / board.GRID_SIZE),
+                                       (int) (cells[i] % board.GRID_SIZE));
+    }
+
+    public int getChangedCount()
+    {
+      return cells.length;
+    }
+
+    public int getRow(int i)
+    {
+      return (int) (cells[i] / gridSize);
+    }
+
+    public int getCol(int i)
+    {
+      return (int) (cells[i] % gridSize);
+    }
+
+    public char getAppearance(int i)
+    {
+      return appearances[i];
+    }
+  }
+}
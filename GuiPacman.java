@@ -8,12 +8,12 @@
  *
  */
 
+import javafx.animation.AnimationTimer;
 import javafx.application.*;
 import javafx.scene.*;
 import javafx.scene.paint.*;
 import javafx.scene.shape.*;
 import javafx.scene.layout.*;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.stage.*;
 import javafx.event.*;
@@ -21,6 +21,8 @@ import javafx.scene.input.*;
 import javafx.scene.text.*;
 import javafx.geometry.*;
 import java.io.*;
+import java.util.SplittableRandom;
+import java.util.concurrent.*;
 
 
 public class GuiPacman extends Application
@@ -33,12 +35,31 @@ public class GuiPacman extends Application
   private static final Color COLOR_VALUE_LIGHT = Color.rgb(249, 246, 242);
   private static final Color COLOR_VALUE_DARK = Color.rgb(119, 110, 101);
 
+  // Side length of a tile in pixels
+  private static final int TILE_SIZE = 30;
+  // Most tiles shown along each side of the canvas viewport
+  private static final int VIEW_TILES = 25;
+
   // Instance Variables
   private int gridSize;
   private GridPane pane;
   private StackPane stack;
   private double pacmanAngle = 0;
   private GridPane endPane;
+  private SpriteAtlas atlas;
+  private Tile[][] tiles;   // One retained node per cell, reused across moves
+  private Text scoreText;
+  private boolean canvasMode;   // Draw on a Canvas instead of one node per cell
+  private CanvasView canvasView;
+  private GameLoop loop;        // Advances the board on its own thread
+  private int ticksPerSecond;   // 0 means the board only moves on key presses
+  private long seed = new SplittableRandom().nextLong(); // Seeds where cherries appear
+  private SplittableRandom random; // Seeded and shared by every board played
+  private String replayLog;     // Where to record the session, null for nowhere
+  private boolean generated;    // The board was built from its size, not loaded
+  private BackgroundSaver saver; // Writes saves off the FX thread
+  private int autosaveSeconds;  // 0 means only save when S is pressed
+  private long autopilotMillis; // Search time per autopilot move, 0 for no autopilot
 
   /*
    * Name:      start
@@ -49,56 +70,150 @@ public class GuiPacman extends Application
   @Override
    public void start(Stage primaryStage)
   {
+    // Decode the sprites in the background while the board and stage are built
+    Future<SpriteAtlas> sprites = SpriteAtlas.loadAsync(TILE_SIZE);
+
     // Process Arguments and Initialize the Game Board
     processArgs(getParameters().getRaw().toArray(new String[0]));
 
     // Construct the GUI
     pane = new GridPane();
     stack = new StackPane(pane);
+    try{
+      atlas = sprites.get();
+    }catch(InterruptedException | ExecutionException e){
+      System.out.println("Could not load the sprites: " + e.getCause());
+      System.exit(-1);
+    }
     setPane();
 
     Scene scene = new Scene(stack);
     scene.setOnKeyPressed(new myKeyHandler());
 
+    // Game logic runs on its own thread, rendering follows the screen refresh
+    ReplayRecorder recorder = null;
+    if(replayLog != null){
+      try{
+        recorder = new ReplayRecorder(replayLog, board, seed, generated);
+        System.out.println("Recording to " + replayLog);
+      }catch(IOException e){
+        System.out.println("IOException, not recording: " + e.getMessage());
+      }
+    }
+    loop = new GameLoop(board, ticksPerSecond, random, recorder);
+    if(!generated)
+      loop.setLayout(board);
+    if(autopilotMillis > 0)
+      loop.setAutopilot(new MctsPolicy(autopilotMillis,
+                                       Runtime.getRuntime().availableProcessors()));
+    loop.start();
+    new FrameRenderer().start();
+
+    // Saves are reported on the console and in the title bar when they finish
+    saver = new BackgroundSaver(outputBoard, message -> {
+      System.out.println(message);
+      Platform.runLater(() -> primaryStage.setTitle("GuiPacman - " + message));
+    });
+    if(autosaveSeconds > 0)
+      saver.autosave(loop::getBoard, autosaveSeconds);
+
     primaryStage.setTitle("GuiPacman");
     primaryStage.setScene(scene);
     primaryStage.show();
   }
 
+  /*
+   * Name:      stop
+   * Purpose:   Stop the game loop when the window closes, which also
+   *            finishes the replay log.
+   */
+  @Override
+  public void stop()
+  {
+    if(loop != null)
+      loop.stop();
+    if(saver != null)
+      saver.shutdown();
+    if(Metrics.ENABLED)
+      System.out.println(Metrics.summary());
+  }
+
 
 
   /*
    * Name:    setPane
    *
-   * Purpose: Update the GridPane based on board
+   * Purpose: Build the GridPane for the board. The nodes created here are
+   *          kept and updated in place by the FrameRenderer.
    */
   private void setPane(){
+    long start = Metrics.now();
     Text gameName = new Text();
     gameName.setText("Pac-Man");
     gameName.setFont(Font.font("Bauhaus 93", FontWeight.BOLD, 30));
-    Text score = new Text();
-    score.setText("Score: " + board.getScore());
-    score.setFont(Font.font("Bauhaus 93", FontWeight.BOLD, 20));
+    scoreText = new Text();
+    scoreText.setText("Score: " + board.getScore() + "  Dots: " + board.getRemainingDots());
+    scoreText.setFont(Font.font("Bauhaus 93", FontWeight.BOLD, 20));
 
     pane.setAlignment(Pos.CENTER);
     pane.setPadding(new Insets(5, 5, 5, 5));
     pane.setHgap(4);
     pane.setVgap(4);
     pane.setStyle("-fx-background-color: rgb(95, 158, 160)");
-    gridSize = board.getGrid().length;
+    gridSize = board.GRID_SIZE;
+    if(canvasMode){
+      int viewTiles = Math.min(gridSize, VIEW_TILES);
+      canvasView = new CanvasView(atlas, viewTiles, viewTiles);
+      canvasView.getNode().setOnScroll(e -> {
+        canvasView.zoom(e.getDeltaY() > 0 ? 1.25 : 0.8);
+        drawCanvas();
+      });
+      pane.add(gameName, 0, 0);
+      pane.add(scoreText, 1, 0);
+      pane.add(canvasView.getNode(), 0, 1, 2, 1);
+      canvasView.draw(board, pacmanAngle);
+      Metrics.SET_PANE.since(start);
+      return;
+    }
     pane.add(gameName, 0, 0, 10, 1);
-    pane.add(score, gridSize/2, 0, 10, 1);
+    pane.add(scoreText, gridSize/2, 0, 10, 1);
+    tiles = new Tile[gridSize][gridSize];
     for(int i = 0; i <gridSize; i++){
       for(int j = 0; j < gridSize; j++){
-        Tile toAdd = new Tile(board.getGrid()[i][j]);
-        pane.add(toAdd.getNode(), j, i+1);
+        tiles[i][j] = new Tile(board.getCell(i, j));
+        pane.add(tiles[i][j].getNode(), j, i+1);
       }
     }
+    Metrics.SET_PANE.since(start);
+  }
+
+  /*
+   * Name:    redrawPane
+   *
+   * Purpose: Bring every retained tile up to date, e.g. after a new game
+   */
+  private void redrawPane(){
+    long start = Metrics.now();
+    if(canvasMode){
+      drawCanvas();
+      Metrics.REDRAW_PANE.since(start);
+      return;
+    }
+    synchronized(board){
+      scoreText.setText("Score: " + board.getScore() + "  Dots: " + board.getRemainingDots());
+      for(int i = 0; i < gridSize; i++){
+        for(int j = 0; j < gridSize; j++){
+          tiles[i][j].setAppearance(board.getCell(i, j));
+        }
+      }
+    }
+    Metrics.REDRAW_PANE.since(start);
   }
   /*
    * Name:       myKeyHandler
    *
-   * Purpose:    Handle keyboard events
+   * Purpose:    Handle keyboard events. Moves are only queued for the
+   *             game loop; nothing here waits for the board.
    *
    *
    */
@@ -112,108 +227,146 @@ public class GuiPacman extends Application
     */
     @Override
     public void handle (KeyEvent e) {
+      Metrics.keyPressed();
 
       if(e.getCode().equals(KeyCode.UP)){
-        if(board.canMove(Direction.UP) && !board.isGameOver()){
-          board.move(Direction.UP);
-          System.out.println("Moving Up");
-          pacmanAngle = 270;
-          refreshPane();
-        }
+        loop.submit(Direction.UP);
       }else if(e.getCode().equals(KeyCode.RIGHT)){
-        if(board.canMove(Direction.RIGHT) && !board.isGameOver()){
-          board.move(Direction.RIGHT);
-          System.out.println("Moving Right");
-          pacmanAngle = 0;
-          refreshPane();
-        }
+        loop.submit(Direction.RIGHT);
       }else if(e.getCode().equals(KeyCode.DOWN)){
-        if(board.canMove(Direction.DOWN) && !board.isGameOver()){
-          board.move(Direction.DOWN);
-          System.out.println("Moving Down");
-          pacmanAngle = 90;
-          refreshPane();
-        }
+        loop.submit(Direction.DOWN);
       }else if(e.getCode().equals(KeyCode.LEFT)){
-        if(board.canMove(Direction.LEFT) && !board.isGameOver()){
-          board.move(Direction.LEFT);
-          System.out.println("Moving Left");
-          pacmanAngle = 180;
-          refreshPane();
-        }
+        loop.submit(Direction.LEFT);
       }else if(e.getCode().equals(KeyCode.SPACE)){
         // Hit space bar to start a new game if the last game is over
-        restartGame();
+        loop.restart();
+      }else if(canvasMode && (e.getCode().equals(KeyCode.EQUALS)
+                              || e.getCode().equals(KeyCode.MINUS))){
+        // Zoom the canvas viewport in or out
+        canvasView.zoom(e.getCode().equals(KeyCode.EQUALS) ? 1.25 : 0.8);
+        drawCanvas();
       }else if(e.getCode().equals(KeyCode.S)){
-        System.out.println("Saving Board to " + outputBoard);
-        try{
-          board.saveBoard(outputBoard);
-        }catch(IOException ex){
-          System.out.println("IOException");
-        }
+        // Written in the background; pressing again before it starts saves once
+        Metrics.saveRequested();
+        saver.save(loop.getBoard());
       }
     }
+  } // End of Inner Class myKeyHandler
 
 
-    /*
-     * Name:      gameIsOver
-     * Purpose:   Check if the game is over and show the gameover board.
-     *
-     * Return:    void
-     */
-    private void gameIsOver() {
-      Text gameOver = new Text();
-      gameOver.setText("Game Over");
-      gameOver.setFont(Font.font("Bauhaus 93", FontWeight.BOLD, 30));
-      Text restartInstruction = new Text();
-      restartInstruction.setText("Press Space Bar to Start a New Game");
-      restartInstruction.setFont(Font.font("Bauhaus 93", FontWeight.BOLD, 20));
-
-
-
-      endPane = new GridPane();
-      endPane.setAlignment(Pos.CENTER);
-      endPane.setPadding(new Insets(0, 0, 0, 0));
-      endPane.setHgap(0);
-      endPane.setVgap(0);
-      endPane.setStyle("-fx-background-color: rgb(100, 100, 100, 0.5)");
-      endPane.add(gameOver,0,0);
-      endPane.add(restartInstruction, 0, 1);
-      endPane.setHalignment(gameOver, HPos.CENTER);
-      stack.getChildren().add(endPane);
-    }
 
-    /*
-     * Name:      refleshPane
-     * Purpose:   Update the pane after each keyboard event
-     *
-     * Return:    void
-     */
-    private void refreshPane(){
-      pane.getChildren().clear(); // Clear the outdated nodes
-      setPane();
+  /*
+   * Name:       FrameRenderer
+   *
+   * Purpose:    Once per screen refresh, apply every frame the game loop
+   *             has published since the last one.
+   *
+   *
+   */
+  private class FrameRenderer extends AnimationTimer {
+
+    @Override
+    public void handle(long now) {
+      GameLoop.Frame frame;
+      GameLoop.Frame last = null;
+      long pressed = 0;
+      while((frame = loop.pollFrame()) != null){
+        applyFrame(frame);
+        last = frame;
+        if(pressed == 0)
+          pressed = frame.keyNanos;
+      }
+      if(last == null)
+        return;
+
+      scoreText.setText("Score: " + last.score + "  Dots: " + last.remainingDots);
+      if(canvasMode){
+        // The viewport follows Pac-man, so every visible cell may have moved
+        drawCanvas();
+      }
       // Place a semi-transparent overlay if the game is over
-      if(board.isGameOver()){
-        gameIsOver();
+      if(last.gameOver && endPane == null){
+        gameIsOver(last.won);
       }
+      // From the oldest key press this pulse shows to the pane being updated
+      if(pressed != 0)
+        Metrics.KEY_TO_PAINT.since(pressed);
     }
 
     /*
-     * Name:      restartGame
-     * Purpose:   Start a new game
+     * Name:      applyFrame
+     * Purpose:   Update the retained tiles of the cells a tick changed
      *
      * Return:    void
      */
-    private void restartGame(){
-      if(board.isGameOver()){
-        System.out.println("Start a New Game");
-        stack.getChildren().remove(endPane);
-        board = new Board(gridSize);
-        pacmanAngle = 0;
-        refreshPane();
+    private void applyFrame(GameLoop.Frame frame){
+      pacmanAngle = angleOf(frame.heading);
+      if(frame.redraw){
+        // A new game has started
+        board = loop.getBoard();
+        if(endPane != null){
+          stack.getChildren().remove(endPane);
+          endPane = null;
+        }
+        redrawPane();
+        return;
+      }
+      if(canvasMode)
+        return;
+      for(int i = 0; i < frame.getChangedCount(); i++){
+        tiles[frame.getRow(i)][frame.getCol(i)].setAppearance(frame.getAppearance(i));
       }
     }
-  } // End of Inner Class myKeyHandler
+  } // End of Inner Class FrameRenderer
+
+
+
+  /*
+   * Name:      gameIsOver
+   * Purpose:   Check if the game is over and show the gameover board.
+   * Parameter: true if Pac-man ate every dot, false if he was caught
+   *
+   * Return:    void
+   */
+  private void gameIsOver(boolean won) {
+    Text gameOver = new Text();
+    gameOver.setText(won ? "You Win!" : "Game Over");
+    gameOver.setFont(Font.font("Bauhaus 93", FontWeight.BOLD, 30));
+    Text restartInstruction = new Text();
+    restartInstruction.setText("Press Space Bar to Start a New Game");
+    restartInstruction.setFont(Font.font("Bauhaus 93", FontWeight.BOLD, 20));
+
+
+
+    endPane = new GridPane();
+    endPane.setAlignment(Pos.CENTER);
+    endPane.setPadding(new Insets(0, 0, 0, 0));
+    endPane.setHgap(0);
+    endPane.setVgap(0);
+    endPane.setStyle("-fx-background-color: rgb(100, 100, 100, 0.5)");
+    endPane.add(gameOver,0,0);
+    endPane.add(restartInstruction, 0, 1);
+    endPane.setHalignment(gameOver, HPos.CENTER);
+    stack.getChildren().add(endPane);
+  }
+
+  // Draw the canvas viewport while the game loop is kept off the board
+  private void drawCanvas(){
+    synchronized(board){
+      canvasView.draw(board, pacmanAngle);
+    }
+  }
+
+  // Rotation of the pacman sprite when facing a direction
+  private double angleOf(Direction direction){
+    switch(direction){
+      case UP:    return 270;
+      case DOWN:  return 90;
+      case LEFT:  return 180;
+      case RIGHT: return 0;
+      default:    return pacmanAngle;
+    }
+  }
 
 
 
@@ -221,10 +374,9 @@ public class GuiPacman extends Application
    * Name:        Tile
    *
    * Purpose:     This class tile helps to make the tiles in the board
-   *              presented using JavaFX. Whenever a tile is needed,
-   *              the constructor taking one char parameter is called
-   *              and create certain ImageView fit to the char representation
-   *              of the tile.
+   *              presented using JavaFX. Each cell of the board owns one
+   *              Tile for the lifetime of the window, and its ImageView is
+   *              switched to another sprite whenever the cell changes.
    *
    *
    */
@@ -235,47 +387,26 @@ public class GuiPacman extends Application
     /*
      * Constructor
      *
-     * Purpose:    Set the ImageView with proper image based on the character
-                   from the grid of the board
+     * Purpose:    Point an ImageView at the sprite of the character from
+                   the grid of the board. All tiles share the one atlas
+                   image, so nothing is decoded or rescaled here.
      * Parameter:  A character from the grid of the board
      *
      */
     public Tile(char tileAppearance) {
-      Image image;
-      if(tileAppearance == ' '){
-        image = new Image("image/dot_eaten.png");
-        repr = new ImageView(image);
-      }else if(tileAppearance == '*'){
-        image = new Image("image/dot_uneaten.png");
-        repr = new ImageView(image);
-      }else if(tileAppearance == 'P'){
-        image = new Image("image/pacman_right.png");
-        repr = new ImageView(image);
-        // Rotate the pacman image to the direction of its movement
-        repr.setRotate(pacmanAngle);
-      }else if(tileAppearance == 'D'){
-        image = new Image("image/inky_down.png");
-        repr = new ImageView(image);
-      }else if(tileAppearance == 'L'){
-        image = new Image("image/pinky_left.png");
-        repr = new ImageView(image);
-      }else if(tileAppearance == 'R'){
-        image = new Image("image/blinky_right.png");
-        repr = new ImageView(image);
-      }else if(tileAppearance == 'U'){
-        image = new Image("image/clyde_up.png");
-        repr = new ImageView(image);
-      }else if(tileAppearance == 'C'){
-        image = new Image("image/cherry.png");
-        repr = new ImageView(image);
-      }else if(tileAppearance == 'X'){
-        image = new Image("image/pacman_dead.png");
-        repr = new ImageView(image);
-      }
-      if(repr instanceof ImageView){
-        repr.setFitWidth(30);
-        repr.setFitHeight(30);
-      }
+      repr = new ImageView(atlas.getImage());
+      setAppearance(tileAppearance);
+    }
+
+    /*
+     * Name: setAppearance
+     *
+     * Show the sprite of another grid character on this tile
+     */
+    public void setAppearance(char tileAppearance) {
+      repr.setViewport(atlas.getViewport(tileAppearance));
+      // Rotate the pacman image to the direction of its movement
+      repr.setRotate(tileAppearance == 'P' ? pacmanAngle : 0);
     }
 
     /*
@@ -300,6 +431,7 @@ public class GuiPacman extends Application
   {
     String inputBoard = null;   // The filename for where to load the Board
     int boardSize = 0;          // The Size of the Board
+    int ghostCount = 4;         // The number of ghosts on a new Board
 
     // Arguments must come in pairs
     if((args.length % 2) != 0)
@@ -326,6 +458,42 @@ public class GuiPacman extends Application
         // the size of the Board
         boardSize = Integer.parseInt(args[i + 1]);
       }
+      else if(args[i].equals("-r") && (args[i + 1].equals("tiles")
+                                       || args[i + 1].equals("canvas")))
+      {   // We are processing the argument that specifies
+        // how the board is drawn
+        canvasMode = args[i + 1].equals("canvas");
+      }
+      else if(args[i].equals("-g"))
+      {   // We are processing the argument that specifies
+        // how many ghosts a new Board starts with
+        ghostCount = Integer.parseInt(args[i + 1]);
+      }
+      else if(args[i].equals("-f"))
+      {   // We are processing the argument that specifies
+        // how many times per second the game advances on its own
+        ticksPerSecond = Integer.parseInt(args[i + 1]);
+      }
+      else if(args[i].equals("-l"))
+      {   // We are processing the argument that specifies
+        // the file the session is recorded to
+        replayLog = args[i + 1];
+      }
+      else if(args[i].equals("-a"))
+      {   // We are processing the argument that specifies
+        // how often the board is saved without pressing S
+        autosaveSeconds = Integer.parseInt(args[i + 1]);
+      }
+      else if(args[i].equals("-m"))
+      {   // We are processing the argument that specifies
+        // how long the autopilot thinks about every move
+        autopilotMillis = Long.parseLong(args[i + 1]);
+      }
+      else if(args[i].equals("-x"))
+      {   // We are processing the argument that specifies
+        // the seed deciding where cherries appear
+        seed = Long.parseLong(args[i + 1]);
+      }
       else
       {   // Incorrect Argument
         printUsage();
@@ -341,16 +509,22 @@ public class GuiPacman extends Application
       boardSize = 10;
 
     // Initialize the Game Board
+    random = new SplittableRandom(seed);
     try{
-      if(inputBoard != null)
+      if(inputBoard != null){
         board = new Board(inputBoard);
-      else
-        board = new Board(boardSize);
+        board.setRandom(random);
+      }else{
+        board = new Board(boardSize, Math.max(ghostCount, 0), random);
+        generated = true;
+      }
     }
     catch (Exception e)
     {
       System.out.println(e.getClass().getName() + " was thrown while creating a " +
           "Board from file " + inputBoard);
+      if(e.getMessage() != null)
+        System.out.println(e.getMessage());
       System.out.println("Either your Board(String, Random) " +
           "Constructor is broken or the file isn't " +
           "formated correctly");
@@ -362,7 +536,8 @@ public class GuiPacman extends Application
   private static void printUsage()
   {
     System.out.println("GuiPacman");
-    System.out.println("Usage:  GuiPacman [-i|o file ...]");
+    System.out.println("Usage:  GuiPacman [-i|o file ...] [-s size] [-g ghosts] [-r tiles|canvas] [-f rate]");
+    System.out.println("                 [-l log] [-x seed] [-a seconds] [-m ms]");
     System.out.println();
     System.out.println("  Command line arguments come in pairs of the form: <command> <argument>");
     System.out.println();
@@ -370,8 +545,26 @@ public class GuiPacman extends Application
     System.out.println();
     System.out.println("  -o [file]  -> Specifies a file that should be used to save the Pac-Man board");
     System.out.println("                If none specified then the default \"Pac-Man.board\" file will be used");
+    System.out.println("                Files ending in " + Board.BINARY_EXTENSION + " are saved in the compact binary format");
     System.out.println("  -s [size]  -> Specifies the size of the Pac-Man board if an input file hasn't been");
     System.out.println("                specified.  If both -s and -i are used, then the size of the board");
     System.out.println("                will be determined by the input file. The default size is 10.");
+    System.out.println("  -g [count] -> Specifies how many ghosts a new board starts with. The default is 4.");
+    System.out.println("  -r [mode]  -> Specifies how the board is drawn: \"tiles\" (the default) creates one");
+    System.out.println("                image per cell, \"canvas\" draws only the cells around Pac-Man onto a");
+    System.out.println("                canvas and suits very large boards. Zoom with the mouse wheel or +/-.");
+    System.out.println("  -f [rate]  -> Advances the game rate times per second even without key presses,");
+    System.out.println("                with Pac-Man moving on in the last direction given. The default of 0");
+    System.out.println("                moves the game one step per key press.");
+    System.out.println("  -l [file]  -> Records every move to a replay log that ReplayVerifier can play back");
+    System.out.println("                and check. The log is finished when the window is closed.");
+    System.out.println("  -x [seed]  -> Seeds where cherries appear, so the same moves play the same game.");
+    System.out.println("  -a [secs]  -> Also saves the board to the output file every secs seconds, in the");
+    System.out.println("                background like pressing S. The default of 0 never autosaves.");
+    System.out.println("  -m [ms]    -> Lets a Monte-Carlo tree search play, thinking ms milliseconds");
+    System.out.println("                per move. Key presses still take precedence.");
+    System.out.println();
+    System.out.println("  Run with -Dpacman.metrics=true to collect latency histograms, shown over JMX");
+    System.out.println("  as " + Metrics.OBJECT_NAME + " and printed when the window is closed.");
   }
 }
@@ -0,0 +1,125 @@
+import java.util.Arrays;
+
+/**
+ * Hash map from long keys to long values kept in two flat arrays, with
+ * linear probing and no boxing. Removal shifts the following entries back
+ * instead of leaving tombstones, so probe runs stay short under churn.
+ *
+ * Long.MIN_VALUE is reserved to mark empty slots and cannot be a key.
+ */
+public class LongHashMap {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final long missing;     // Returned by get and remove for absent keys
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    public LongHashMap(long missing) {
+        this(16, missing);
+    }
+
+    public LongHashMap(int expected, long missing) {
+        this.missing = missing;
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        allocate(capacity);
+    }
+
+    // An independent map with the same entries
+    public LongHashMap copy() {
+        LongHashMap copy = new LongHashMap(missing);
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.mask = mask;
+        copy.size = size;
+        return copy;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    // Slot holding the key, or the empty slot where it would go
+    private int find(long key) {
+        int i = slot(key);
+        while (keys[i] != EMPTY && keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long get(long key) {
+        int i = find(key);
+        return keys[i] == key ? values[i] : missing;
+    }
+
+    public void put(long key, long value) {
+        if (key == EMPTY)
+            throw new IllegalArgumentException("Reserved key " + key);
+        int i = find(key);
+        if (keys[i] == key) {
+            values[i] = value;
+            return;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length)
+            rehash(keys.length * 2);
+    }
+
+    public long remove(long key) {
+        int i = find(key);
+        if (keys[i] != key)
+            return missing;
+        long old = values[i];
+
+        // Pull back every entry of the probe run that the hole would cut off
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == EMPTY)
+                break;
+            int home = slot(keys[j]);
+            boolean reachable = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+            if (!reachable) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+        size--;
+        return old;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int j = find(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
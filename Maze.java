@@ -0,0 +1,214 @@
+import java.util.Arrays;
+
+/**
+ * The walls of a board and everything precomputed from them when it is
+ * loaded. The maze never changes, so every copy of a board shares it.
+ *
+ * Each cell has a 4-bit mask of the moves that stay on the board and off
+ * the walls, two cells to a byte, so checking a move is one lookup.
+ *
+ * For the ghosts the open cells are reduced to a junction graph. A
+ * junction is a cell with other than two ways out; the cells between two
+ * junctions form a corridor, and each corridor is an edge weighted with
+ * its length. A corridor cell remembers its corridor and how far along it
+ * lies, so its walking distance to anywhere follows from the distances of
+ * the corridor's two ends. A ring without any junction gets one.
+ *
+ * Mazes are kept in flat per-cell arrays, so boards with walls are
+ * limited to BitGrid.DENSE_LIMIT cells.
+ */
+public class Maze {
+
+    private static final Direction[] MOVES = MovePolicy.MOVES;
+    private static final int UNASSIGNED = Integer.MIN_VALUE;
+
+    private final int size;
+    private final BitGrid walls;
+    private final long wallCount;
+    private final byte[] masks;         // Moves of cell 2i in the low nibble, of 2i+1 in the high
+
+    // Junction graph, read by MazeDistanceField
+    final int[] segment;                // Cell -> corridor, or -1 - junction for a junction
+    final int[] offset;                 // Cell -> steps from the corridor's first end
+    int[] segmentStart = new int[16];   // Corridor -> junction at offset 0
+    int[] segmentEnd = new int[16];     // Corridor -> junction at offset length
+    int[] segmentLength = new int[16];
+    int segmentCount;
+    int junctionCount;
+    int[] edgeStart;                    // Junction -> its first edge; edges of j end at edgeStart[j + 1]
+    int[] edgeTarget;
+    int[] edgeWeight;
+
+    private int[] junctionCells = new int[16]; // Only needed while building
+
+    public Maze(BitGrid walls) {
+        this.size = walls.getSize();
+        long cellCount = (long) size * size;
+        if (cellCount > BitGrid.DENSE_LIMIT)
+            throw new IllegalArgumentException("Boards with walls may have at most "
+                                               + BitGrid.DENSE_LIMIT + " cells");
+        this.walls = walls;
+        this.wallCount = walls.cardinality();
+
+        int cells = (int) cellCount;
+        masks = new byte[(cells + 1) / 2];
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
+                if (walls.get(row, col))
+                    continue;
+                int mask = 0;
+                for (int i = 0; i < MOVES.length; i++) {
+                    if (isOpen(row + MOVES[i].getY(), col + MOVES[i].getX()))
+                        mask |= 1 << i;
+                }
+                int cell = row * size + col;
+                masks[cell >>> 1] |= mask << ((cell & 1) << 2);
+            }
+        }
+
+        segment = new int[cells];
+        offset = new int[cells];
+        buildGraph(cells);
+        junctionCells = null;
+    }
+
+    private boolean isOpen(int row, int col) {
+        return row >= 0 && col >= 0 && row < size && col < size && !walls.get(row, col);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isWall(int row, int col) {
+        return walls.get(row, col);
+    }
+
+    public long getWallCount() {
+        return wallCount;
+    }
+
+    public BitGrid getWalls() {
+        return walls;
+    }
+
+    // Legal moves from a cell, bit i set when MovePolicy.MOVES[i] is allowed
+    public int moves(int row, int col) {
+        return moves(row * size + col);
+    }
+
+    private int moves(int cell) {
+        return (masks[cell >>> 1] >>> ((cell & 1) << 2)) & 0xF;
+    }
+
+    public boolean canMove(int row, int col, Direction direction) {
+        if (direction == Direction.STAY)
+            return true;
+        return (moves(row * size + col) & (1 << direction.ordinal())) != 0;
+    }
+
+    /*
+     * Number the junctions, then walk every corridor leaving each of them
+     * to the junction at its other end. Corridors are walked from both
+     * ends, which gives both directed edges; the cells are numbered on the
+     * first walk. Open cells left over lie on rings without a junction, so
+     * one cell of each becomes a junction and is walked in turn.
+     */
+    private void buildGraph(int cells) {
+        Arrays.fill(segment, UNASSIGNED);
+        for (int cell = 0; cell < cells; cell++) {
+            if (!walls.get(cell / size, cell % size) && Integer.bitCount(moves(cell)) != 2)
+                addJunction(cell);
+        }
+
+        int[][] edges = { new int[16], new int[16], new int[16] }; // From, to, weight
+        int edgeCount = 0;
+        int walked = 0;
+        for (int cell = 0; cell <= cells; cell++) {
+            for (; walked < junctionCount; walked++)
+                edgeCount = walkCorridors(junctionCells[walked], edges, edgeCount);
+            if (cell < cells && segment[cell] == UNASSIGNED && !walls.get(cell / size, cell % size))
+                addJunction(cell);
+        }
+
+        // Adjacency lists packed one junction after another
+        edgeStart = new int[junctionCount + 1];
+        edgeTarget = new int[edgeCount];
+        edgeWeight = new int[edgeCount];
+        for (int i = 0; i < edgeCount; i++)
+            edgeStart[edges[0][i] + 1]++;
+        for (int j = 0; j < junctionCount; j++)
+            edgeStart[j + 1] += edgeStart[j];
+        int[] fill = Arrays.copyOf(edgeStart, junctionCount);
+        for (int i = 0; i < edgeCount; i++) {
+            int slot = fill[edges[0][i]]++;
+            edgeTarget[slot] = edges[1][i];
+            edgeWeight[slot] = edges[2][i];
+        }
+    }
+
+    private void addJunction(int cell) {
+        if (junctionCount == junctionCells.length)
+            junctionCells = Arrays.copyOf(junctionCells, junctionCount * 2);
+        junctionCells[junctionCount] = cell;
+        segment[cell] = -1 - junctionCount++;
+    }
+
+    private int step(int cell, int move) {
+        return cell + MOVES[move].getY() * size + MOVES[move].getX();
+    }
+
+    // Add an edge for every way out of a junction, numbering new corridors
+    private int walkCorridors(int from, int[][] edges, int edgeCount) {
+        int junction = -1 - segment[from];
+        int mask = moves(from);
+        for (int first = 0; first < MOVES.length; first++) {
+            if ((mask & (1 << first)) == 0)
+                continue;
+            int cell = step(from, first);
+            int came = from;
+            int length = 1;
+            int corridor = segment[cell] == UNASSIGNED ? newSegment(junction) : -1;
+            while (segment[cell] >= 0 || segment[cell] == UNASSIGNED) {
+                if (corridor >= 0) {
+                    segment[cell] = corridor;
+                    offset[cell] = length;
+                }
+                // A corridor cell has exactly one way on besides the way back
+                int ways = moves(cell);
+                int next = -1;
+                for (int i = 0; i < MOVES.length && next < 0; i++) {
+                    if ((ways & (1 << i)) != 0 && step(cell, i) != came)
+                        next = step(cell, i);
+                }
+                came = cell;
+                cell = next;
+                length++;
+            }
+            int target = -1 - segment[cell];
+            if (corridor >= 0) {
+                segmentEnd[corridor] = target;
+                segmentLength[corridor] = length;
+            }
+            if (edgeCount == edges[0].length) {
+                for (int i = 0; i < edges.length; i++)
+                    edges[i] = Arrays.copyOf(edges[i], edgeCount * 2);
+            }
+            edges[0][edgeCount] = junction;
+            edges[1][edgeCount] = target;
+            edges[2][edgeCount] = length;
+            edgeCount++;
+        }
+        return edgeCount;
+    }
+
+    private int newSegment(int start) {
+        if (segmentCount == segmentStart.length) {
+            segmentStart = Arrays.copyOf(segmentStart, segmentCount * 2);
+            segmentEnd = Arrays.copyOf(segmentEnd, segmentCount * 2);
+            segmentLength = Arrays.copyOf(segmentLength, segmentCount * 2);
+        }
+        segmentStart[segmentCount] = start;
+        return segmentCount++;
+    }
+}
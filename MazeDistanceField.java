@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * Walking distance to Pac-man on a board with walls.
+ *
+ * Whenever Pac-man reaches a new cell the distances from him to every
+ * junction of the maze are found with Dijkstra's algorithm over the
+ * junction graph, which is far smaller than the board. The distance of
+ * any other cell follows from the two ends of its corridor, so ghosts
+ * steer around walls with a few lookups each and nobody searches per step.
+ */
+public class MazeDistanceField extends DistanceField {
+
+    private static final int FAR = Integer.MAX_VALUE / 4;   // Not reachable
+
+    private final Maze maze;
+    private final int size;
+    private final int[] distances;      // Junction -> distance to Pac-man
+    private final long[] heap;          // Distance << 32 | junction, stale entries allowed
+    private int pacmanCell = -1;
+    private int pacmanSegment;          // Pac-man's corridor, or -1 on a junction
+    private int pacmanOffset;
+
+    public MazeDistanceField(Maze maze) {
+        super(maze.getSize());
+        this.maze = maze;
+        this.size = maze.getSize();
+        distances = new int[maze.junctionCount];
+        heap = new long[maze.edgeTarget.length + 2];
+    }
+
+    // Only a move to another cell needs new distances
+    @Override
+    public void update(int row, int col) {
+        int cell = row * size + col;
+        if (cell == pacmanCell)
+            return;
+        pacmanCell = cell;
+
+        Arrays.fill(distances, FAR);
+        int heapSize = 0;
+        int segment = maze.segment[cell];
+        if (segment < 0) {
+            pacmanSegment = -1;
+            distances[-1 - segment] = 0;
+            heapSize = push(heapSize, 0, -1 - segment);
+        } else {
+            pacmanSegment = segment;
+            pacmanOffset = maze.offset[cell];
+            int start = maze.segmentStart[segment];
+            int end = maze.segmentEnd[segment];
+            distances[start] = pacmanOffset;
+            heapSize = push(heapSize, pacmanOffset, start);
+            int back = maze.segmentLength[segment] - pacmanOffset;
+            if (back < distances[end]) {
+                distances[end] = back;
+                heapSize = push(heapSize, back, end);
+            }
+        }
+
+        while (heapSize > 0) {
+            long top = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown(heapSize);
+            int junction = (int) top;
+            int distance = (int) (top >>> 32);
+            if (distance > distances[junction])
+                continue;
+            for (int e = maze.edgeStart[junction]; e < maze.edgeStart[junction + 1]; e++) {
+                int target = maze.edgeTarget[e];
+                int through = distance + maze.edgeWeight[e];
+                if (through < distances[target]) {
+                    distances[target] = through;
+                    heapSize = push(heapSize, through, target);
+                }
+            }
+        }
+    }
+
+    private int push(int heapSize, int distance, int junction) {
+        int i = heapSize++;
+        long entry = (long) distance << 32 | junction;
+        while (i > 0 && heap[(i - 1) >>> 1] > entry) {
+            heap[i] = heap[(i - 1) >>> 1];
+            i = (i - 1) >>> 1;
+        }
+        heap[i] = entry;
+        return heapSize;
+    }
+
+    private void siftDown(int heapSize) {
+        if (heapSize == 0)
+            return;
+        long entry = heap[0];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize)
+                break;
+            if (child + 1 < heapSize && heap[child + 1] < heap[child])
+                child++;
+            if (heap[child] >= entry)
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = entry;
+    }
+
+    @Override
+    public int distance(int row, int col) {
+        int cell = row * size + col;
+        int segment = maze.segment[cell];
+        if (segment < 0)
+            return distances[-1 - segment];
+        int along = maze.offset[cell];
+        int distance = Math.min(along + distances[maze.segmentStart[segment]],
+                                maze.segmentLength[segment] - along + distances[maze.segmentEnd[segment]]);
+        if (segment == pacmanSegment)
+            distance = Math.min(distance, Math.abs(along - pacmanOffset));
+        return Math.min(distance, FAR);
+    }
+
+    @Override
+    public boolean isDownhill(int row, int col, Direction direction) {
+        if (direction == Direction.STAY || !maze.canMove(row, col, direction))
+            return false;
+        int distance = distance(row, col);
+        if (distance >= FAR)
+            return false;
+        return distance(row + direction.getY(), col + direction.getX()) == distance - 1;
+    }
+}
@@ -0,0 +1,285 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks Pac-man's next move with Monte-Carlo tree search.
+ *
+ * The search is root parallel: every worker is a fork/join task with a
+ * copy of the board and a tree of its own, and their visit counts for the
+ * four moves from the root are added up at the end. A worker plays each
+ * iteration forwards on its copy and takes it back with the move journal.
+ * The copies and trees are kept from one move to the next and reset with
+ * Board.copyFrom, so nothing is allocated while searching and next to
+ * nothing per move.
+ *
+ * Each iteration walks down the tree by UCT, adds the children of the
+ * node it ends on, plays random moves from there for a while and scores
+ * the outcome between 0 (caught) and 1 (every dot eaten).
+ */
+public class MctsPolicy implements MovePolicy {
+
+    public static final long DEFAULT_BUDGET_MILLIS = 20;
+
+    private static final int ROLLOUT_MOVES = 20;   // Random moves played past the tree
+    private static final int MAX_NODES = 1 << 16;  // Tree size of one worker
+    private static final double EXPLORATION = 1.4;
+
+    private final long budgetNanos;
+    private final int workers;
+
+    // Sets of worker state not in use; searches running at once take one each
+    private final ConcurrentLinkedQueue<Worker[]> idle = new ConcurrentLinkedQueue<>();
+
+    // Totals over every search, for throughput reports
+    private final AtomicLong iterations = new AtomicLong();
+    private final AtomicLong simulatedMoves = new AtomicLong();
+
+    public MctsPolicy() {
+        this(DEFAULT_BUDGET_MILLIS, Runtime.getRuntime().availableProcessors());
+    }
+
+    /*
+     * @param budgetMillis Time spent on every move
+     * @param workers      Trees searched in parallel
+     */
+    public MctsPolicy(long budgetMillis, int workers) {
+        this.budgetNanos = budgetMillis * 1_000_000L;
+        this.workers = Math.max(1, workers);
+    }
+
+    public long getIterations() {
+        return iterations.get();
+    }
+
+    public long getSimulatedMoves() {
+        return simulatedMoves.get();
+    }
+
+    /*
+     * The board is only read, by every worker at once, so it must not be
+     * moved while the search runs; pass a copy when another thread plays it.
+     */
+    @Override
+    public Direction nextMove(Board board, Random random) {
+        if (board.isGameOver())
+            return null;
+
+        Worker[] state = idle.poll();
+        if (state == null) {
+            state = new Worker[workers];
+            for (int i = 0; i < workers; i++)
+                state[i] = new Worker();
+        }
+
+        long deadline = System.nanoTime() + budgetNanos;
+        List<Search> searches = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++)
+            searches.add(new Search(state[i], board, random.nextLong(), deadline));
+        long[] visits = new long[MOVES.length];
+        try {
+            ForkJoinTask.invokeAll(searches);
+            for (Search search : searches) {
+                long[] result = search.join();
+                for (int i = 0; i < MOVES.length; i++)
+                    visits[i] += result[i];
+            }
+        } finally {
+            idle.add(state);
+        }
+
+        // Most visited legal move; any legal one if there was no time to search
+        Direction best = null;
+        long bestVisits = -1;
+        for (int i = 0; i < MOVES.length; i++) {
+            if (board.canMove(MOVES[i]) && visits[i] > bestVisits) {
+                best = MOVES[i];
+                bestVisits = visits[i];
+            }
+        }
+        return best;
+    }
+
+
+    /*
+     * What a worker keeps between moves: a scratch board and a tree in flat
+     * arrays. The children of a node are four consecutive nodes, one per
+     * entry of MOVES.
+     */
+    private static final class Worker {
+        Board board;
+        final int[] firstChild = new int[MAX_NODES];    // -1 until the node is expanded
+        final int[] visits = new int[MAX_NODES];
+        final double[] reward = new double[MAX_NODES];  // Sum of the rewards seen through the node
+        final boolean[] legal = new boolean[MAX_NODES];
+        final int[] path = new int[MAX_NODES];
+
+        // Make the scratch board a copy of the source, reusing it when it fits
+        Board reset(Board source) {
+            if (board == null || !board.copyFrom(source)) {
+                board = source.copy();
+                board.enableJournal(0);
+            }
+            return board;
+        }
+    }
+
+    // One worker's search for one move
+    private final class Search extends RecursiveTask<long[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Worker worker;
+        private final Board source;
+        private final long seed;
+        private final long deadline;
+
+        private Board board;
+        private SplittableRandom random;
+        private int[] firstChild;
+        private int[] visits;
+        private double[] reward;
+        private boolean[] legal;
+        private int[] path;
+        private int nodeCount;
+
+        Search(Worker worker, Board source, long seed, long deadline) {
+            this.worker = worker;
+            this.source = source;
+            this.seed = seed;
+            this.deadline = deadline;
+        }
+
+        @Override
+        protected long[] compute() {
+            random = new SplittableRandom(seed);
+            board = worker.reset(source);
+            board.setRandom(random.split());
+            firstChild = worker.firstChild;
+            visits = worker.visits;
+            reward = worker.reward;
+            legal = worker.legal;
+            path = worker.path;
+            firstChild[0] = -1;
+            visits[0] = 0;
+            reward[0] = 0;
+            legal[0] = true;
+            nodeCount = 1;
+
+            long done = 0;
+            long moves = 0;
+            do {
+                moves += iterate();
+                done++;
+            } while (System.nanoTime() < deadline);
+            iterations.addAndGet(done);
+            simulatedMoves.addAndGet(moves);
+
+            long[] result = new long[MOVES.length];
+            if (firstChild[0] >= 0) {
+                for (int i = 0; i < MOVES.length; i++)
+                    result[i] = visits[firstChild[0] + i];
+            }
+            return result;
+        }
+
+        // One select, expand, roll out and back up pass; returns the moves played
+        private int iterate() {
+            int rootScore = board.getScore();
+            int node = 0;
+            int length = 0;
+            int played = 0;
+            path[length++] = node;
+
+            // Walk down through expanded nodes
+            while (firstChild[node] >= 0 && !board.isGameOver()) {
+                int child = select(node);
+                if (child < 0)
+                    break;
+                board.move(MOVES[child - firstChild[node]]);
+                played++;
+                node = child;
+                path[length++] = node;
+            }
+
+            // Grow the tree by one level below a node seen before
+            if (!board.isGameOver() && firstChild[node] < 0 && visits[node] > 0
+                && nodeCount + MOVES.length <= MAX_NODES) {
+                expand(node);
+                int child = select(node);
+                if (child >= 0) {
+                    board.move(MOVES[child - firstChild[node]]);
+                    played++;
+                    node = child;
+                    path[length++] = node;
+                }
+            }
+
+            // Play on at random
+            int rollout = 0;
+            while (rollout < ROLLOUT_MOVES && !board.isGameOver()) {
+                Direction direction = randomMove();
+                if (direction == null)
+                    break;
+                board.move(direction);
+                rollout++;
+            }
+            played += rollout;
+
+            double value = score(board.getScore() - rootScore, played);
+            for (int i = 0; i < length; i++) {
+                visits[path[i]]++;
+                reward[path[i]] += value;
+            }
+            board.undo(played);
+            return played;
+        }
+
+        private void expand(int node) {
+            int first = nodeCount;
+            nodeCount += MOVES.length;
+            firstChild[node] = first;
+            for (int i = 0; i < MOVES.length; i++) {
+                firstChild[first + i] = -1;
+                visits[first + i] = 0;
+                reward[first + i] = 0;
+                legal[first + i] = board.canMove(MOVES[i]);
+            }
+        }
+
+        // Legal child with the best UCT value, an unvisited one first
+        private int select(int node) {
+            int first = firstChild[node];
+            double logVisits = Math.log(Math.max(1, visits[node]));
+            int best = -1;
+            double bestValue = Double.NEGATIVE_INFINITY;
+            for (int i = first; i < first + MOVES.length; i++) {
+                if (!legal[i])
+                    continue;
+                if (visits[i] == 0)
+                    return i;
+                double value = reward[i] / visits[i]
+                    + EXPLORATION * Math.sqrt(logVisits / visits[i]);
+                if (value > bestValue) {
+                    best = i;
+                    bestValue = value;
+                }
+            }
+            return best;
+        }
+
+        private Direction randomMove() {
+            return MovePolicy.randomLegalMove(board, random);
+        }
+
+        // Being caught is worth nothing, clearing the board everything
+        private double score(int gained, int played) {
+            if (board.isCaught())
+                return 0;
+            if (board.isWon())
+                return 1;
+            double eaten = played == 0 ? 0 : Math.min(1.0, gained / (10.0 * played));
+            return 0.5 + 0.5 * eaten;
+        }
+    }
+}
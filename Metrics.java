@@ -0,0 +1,195 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * Where the time goes between a key press and the repainted pane.
+ *
+ * Everything here is off unless the JVM is started with
+ * -Dpacman.metrics=true. The flag is a static final, so with it off the
+ * JIT folds every "if (Metrics.ENABLED)" away and an instrumented method
+ * runs as if it were not. With it on, the histograms below fill up, a
+ * MetricsMXBean is registered under OBJECT_NAME for jconsole and friends,
+ * and front ends may print summary() when they stop.
+ *
+ * move, ghostMove and the bytes per move only count boards marked with
+ * Board.setInstrumented, which GameLoop does for the board it plays, so
+ * rollouts and simulated games do not pass for ticks.
+ *
+ * Timing a block:
+ *
+ *     long start = Metrics.now();
+ *     ...
+ *     Metrics.MOVE.since(start);
+ */
+public final class Metrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("pacman.metrics");
+    public static final String OBJECT_NAME = "pacman:type=Metrics";
+
+    public static final LatencyHistogram MOVE = new LatencyHistogram("move");
+    public static final LatencyHistogram GHOST_MOVE = new LatencyHistogram("ghostMove");
+    public static final LatencyHistogram REFRESH_GRID = new LatencyHistogram("refreshGrid");
+    // Redrawing and sorting the cells a move changed, which every frame pays for
+    public static final LatencyHistogram CHANGED_CELLS = new LatencyHistogram("changedCells");
+    public static final LatencyHistogram SAVE_BOARD = new LatencyHistogram("saveBoard");
+    public static final LatencyHistogram TICK = new LatencyHistogram("tick");
+    public static final LatencyHistogram SET_PANE = new LatencyHistogram("setPane");
+    public static final LatencyHistogram REDRAW_PANE = new LatencyHistogram("redrawPane");
+    public static final LatencyHistogram KEY_TO_PAINT = new LatencyHistogram("keyToPaint");
+
+    private static final LatencyHistogram[] HISTOGRAMS = {
+        MOVE, GHOST_MOVE, REFRESH_GRID, CHANGED_CELLS, SAVE_BOARD, TICK, SET_PANE, REDRAW_PANE, KEY_TO_PAINT
+    };
+
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    private static final LongAdder allocatedBytes = new LongAdder();
+    private static final LongAdder keyPresses = new LongAdder();
+    private static final LongAdder savesRequested = new LongAdder();
+    private static final LongAdder gamesStarted = new LongAdder();
+    private static volatile int boardSize;
+
+    static {
+        if (ENABLED)
+            register();
+    }
+
+    private Metrics() {
+    }
+
+    // Start of a timed block; 0 when metrics are off
+    public static long now() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    // Bytes allocated so far by the calling thread; 0 when metrics are off
+    public static long allocated() {
+        return ENABLED && THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    public static void allocatedSince(long start) {
+        if (ENABLED && THREADS != null)
+            allocatedBytes.add(THREADS.getCurrentThreadAllocatedBytes() - start);
+    }
+
+    public static void keyPressed() {
+        if (ENABLED)
+            keyPresses.increment();
+    }
+
+    public static void saveRequested() {
+        if (ENABLED)
+            savesRequested.increment();
+    }
+
+    public static void gameStarted(int size) {
+        if (ENABLED) {
+            gamesStarted.increment();
+            boardSize = size;
+        }
+    }
+
+    // Every histogram and counter, one per line
+    public static String summary() {
+        StringBuilder text = new StringBuilder();
+        for (LatencyHistogram histogram : HISTOGRAMS)
+            text.append(histogram.summary()).append('\n');
+        text.append(String.format("keys=%d saves=%d games=%d size=%d alloc/move=%.0fB",
+                                  keyPresses.sum(), savesRequested.sum(), gamesStarted.sum(),
+                                  boardSize, bytesPerMove()));
+        return text.toString();
+    }
+
+    private static double bytesPerMove() {
+        long moves = MOVE.getCount();
+        return moves == 0 ? 0 : (double) allocatedBytes.sum() / moves;
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        if (!ENABLED)
+            return null;
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported())
+            return null;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    private static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            // Already registered by another class loader, or no JMX; the histograms still work
+        }
+    }
+
+
+    private static final class Bean implements MetricsMXBean {
+
+        private long lastMoves;
+        private long lastNanos = System.nanoTime();
+
+        @Override
+        public long getMoveCount() {
+            return MOVE.getCount();
+        }
+
+        @Override
+        public synchronized double getMovesPerSecond() {
+            long moves = MOVE.getCount();
+            long nanos = System.nanoTime();
+            double rate = nanos == lastNanos ? 0 : (moves - lastMoves) * 1e9 / (nanos - lastNanos);
+            lastMoves = moves;
+            lastNanos = nanos;
+            return rate;
+        }
+
+        @Override
+        public double getTickP50Micros() {
+            return TICK.percentile(0.5) / 1e3;
+        }
+
+        @Override
+        public double getTickP99Micros() {
+            return TICK.percentile(0.99) / 1e3;
+        }
+
+        @Override
+        public double getTickMaxMicros() {
+            return TICK.getMax() / 1e3;
+        }
+
+        @Override
+        public double getAllocatedBytesPerMove() {
+            return bytesPerMove();
+        }
+
+        @Override
+        public int getBoardSize() {
+            return boardSize;
+        }
+
+        @Override
+        public String[] getHistograms() {
+            String[] lines = new String[HISTOGRAMS.length];
+            for (int i = 0; i < lines.length; i++)
+                lines[i] = HISTOGRAMS[i].summary();
+            return lines;
+        }
+
+        @Override
+        public void reset() {
+            for (LatencyHistogram histogram : HISTOGRAMS)
+                histogram.reset();
+            allocatedBytes.reset();
+            keyPresses.reset();
+            savesRequested.reset();
+            gamesStarted.reset();
+        }
+    }
+}
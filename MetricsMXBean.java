@@ -0,0 +1,25 @@
+/**
+ * What Metrics shows over JMX, under the name Metrics.OBJECT_NAME.
+ */
+public interface MetricsMXBean {
+
+    long getMoveCount();
+
+    // Moves per second since the previous call
+    double getMovesPerSecond();
+
+    double getTickP50Micros();
+
+    double getTickP99Micros();
+
+    double getTickMaxMicros();
+
+    double getAllocatedBytesPerMove();
+
+    int getBoardSize();
+
+    // One summary line per latency histogram
+    String[] getHistograms();
+
+    void reset();
+}
@@ -0,0 +1,110 @@
+import java.util.Arrays;
+
+/**
+ * What every move did to a board, kept as flat records of longs so that a
+ * move can be taken back or played again without copying the board.
+ *
+ * A record holds the score, moveCount and Pac-man's cell before and after
+ * the move, which flags were flipped and the cell of a new cherry, then
+ * one (ghost, from, to) triple for every ghost that changed cell. Its size
+ * depends on the number of ghosts that moved, never on the board size.
+ *
+ * The journal has a position, the number of moves currently applied, and
+ * a length, the number of moves it knows. Undoing lowers the position;
+ * recording a new move at a lower position forgets the moves after it.
+ */
+public class MoveJournal {
+
+    // Offsets inside a record
+    static final int BEFORE = 0;          // score << 32 | moveCount before the move
+    static final int PACMAN_BEFORE = 1;   // Pac-man's cell before the move
+    static final int AFTER = 2;           // score << 32 | moveCount after the move
+    static final int PACMAN_AFTER = 3;    // Pac-man's cell after the move
+    static final int FLAGS = 4;
+    static final int CHERRY = 5;          // Cell of the cherry added, if any
+    static final int GHOSTS = 6;          // First (ghost, from, to) triple
+
+    // Flags of a record
+    static final long ATE_DOT = 1;        // Pac-man's new cell was not visited
+    static final long ATE_CHERRY = 2;     // Pac-man's new cell held a cherry
+    static final long ADDED_CHERRY = 4;   // A cherry appeared on the CHERRY cell
+
+    private long[] entries = new long[256];
+    private int[] starts = new int[64];   // Record of move i is [starts[i], starts[i + 1])
+    private int length;
+    private int position;
+    private int open;                     // Start of the record being written
+    private int end;                      // End of the record being written
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    void setPosition(int position) {
+        this.position = position;
+    }
+
+    // Forget every move, keeping the arrays
+    void clear() {
+        length = 0;
+        position = 0;
+    }
+
+    // First entry of the record of a move; start(getLength()) is the end of the last
+    int start(int move) {
+        return starts[move];
+    }
+
+    long get(int index) {
+        return entries[index];
+    }
+
+    // Begin the record of a move played at the current position
+    void beginMove(int score, int moveCount, long pacmanCell) {
+        length = position;
+        open = starts[length];
+        end = open + GHOSTS;
+        ensure(end);
+        entries[open + BEFORE] = pack(score, moveCount);
+        entries[open + PACMAN_BEFORE] = pacmanCell;
+    }
+
+    void ghostMoved(int ghost, long from, long to) {
+        ensure(end + 3);
+        entries[end++] = ghost;
+        entries[end++] = from;
+        entries[end++] = to;
+    }
+
+    void endMove(int score, int moveCount, long pacmanCell, long flags, long cherryCell) {
+        entries[open + AFTER] = pack(score, moveCount);
+        entries[open + PACMAN_AFTER] = pacmanCell;
+        entries[open + FLAGS] = flags;
+        entries[open + CHERRY] = cherryCell;
+        if (length + 2 > starts.length)
+            starts = Arrays.copyOf(starts, starts.length * 2);
+        starts[length + 1] = end;
+        position = ++length;
+    }
+
+    private void ensure(int size) {
+        if (size > entries.length)
+            entries = Arrays.copyOf(entries, Math.max(size, entries.length * 2));
+    }
+
+    static long pack(int score, int moveCount) {
+        return (long) score << 32 | (moveCount & 0xFFFFFFFFL);
+    }
+
+    static int score(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    static int moveCount(long packed) {
+        return (int) packed;
+    }
+}
@@ -0,0 +1,87 @@
+import java.util.*;
+import java.util.random.RandomGenerator;
+
+/**
+ * Decides which way Pac-man goes next when nobody is at the keyboard.
+ */
+public interface MovePolicy {
+
+    Direction[] MOVES = { Direction.UP, Direction.DOWN, Direction.LEFT, Direction.RIGHT };
+
+    /*
+     * Pick the next move for Pac-man.
+     *
+     * @param board  The game being played
+     * @param random Source of randomness owned by the calling game
+     * @return a Direction, or null if the policy gives up
+     */
+    Direction nextMove(Board board, Random random);
+
+
+    // Look up a policy by the name used on the command line
+    static MovePolicy forName(String name) {
+        if (name.equals("random"))
+            return new RandomPolicy();
+        if (name.equals("greedy"))
+            return new GreedyPolicy();
+        if (name.equals("mcts"))
+            return new MctsPolicy();
+        throw new IllegalArgumentException("Unknown policy: " + name);
+    }
+
+
+    /*
+     * One of the legal moves, each as likely as the others, or null if
+     * there are none. The legal moves are collected as bits of a mask, so
+     * nothing is allocated.
+     */
+    static Direction randomLegalMove(Board board, RandomGenerator random) {
+        int legal = 0;
+        for (int i = 0; i < MOVES.length; i++) {
+            if (board.canMove(MOVES[i]))
+                legal |= 1 << i;
+        }
+        if (legal == 0)
+            return null;
+        // Drop the lowest set bits until the chosen one is lowest
+        for (int skip = random.nextInt(Integer.bitCount(legal)); skip > 0; skip--)
+            legal &= legal - 1;
+        return MOVES[Integer.numberOfTrailingZeros(legal)];
+    }
+
+
+    /*
+     * Any legal move, chosen uniformly.
+     */
+    class RandomPolicy implements MovePolicy {
+        @Override
+        public Direction nextMove(Board board, Random random) {
+            return randomLegalMove(board, random);
+        }
+    }
+
+
+    /*
+     * Step onto a neighbouring dot or cherry if there is one, otherwise
+     * wander randomly. Never walks straight into a ghost when it can help it.
+     */
+    class GreedyPolicy implements MovePolicy {
+        @Override
+        public Direction nextMove(Board board, Random random) {
+            Direction fallback = null;
+            int start = random.nextInt(MOVES.length);
+            for (int i = 0; i < MOVES.length; i++) {
+                Direction direction = MOVES[(start + i) % MOVES.length];
+                if (!board.canMove(direction))
+                    continue;
+                char cell = board.getCell(board.getPacmanRow() + direction.getY(),
+                                          board.getPacmanCol() + direction.getX());
+                if (cell == 'C' || cell == '*')
+                    return direction;
+                if (cell == ' ' || fallback == null)
+                    fallback = direction;
+            }
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.Arrays;
+
+/**
+ * Which ghosts stand on which cell, kept up to date as they move so that
+ * "is anybody here" and "who is drawn here" are constant time questions.
+ *
+ * Cells are keys of the form row * GRID_SIZE + col. Every occupied cell
+ * maps to the ghost with the highest index on it, and the ghosts sharing a
+ * cell are chained through the next and prev arrays in falling index order.
+ * Ghosts move in rising index order, so an arriving ghost nearly always
+ * goes straight on top. Who is drawn depends only on where the ghosts
+ * are, not on the order they got there. Boards of up to
+ * DENSE_LIMIT cells keep that mapping in a flat array indexed by cell;
+ * larger boards use a hash map so memory follows the ghost count.
+ */
+public class OccupancyIndex {
+
+    private static final int NONE = -1;
+    private static final long DENSE_LIMIT = 1 << 22;
+
+    private final int[] denseTop;         // Cell -> ghost drawn on it, small boards
+    private final LongHashMap sparseTop;  // Cell -> ghost drawn on it, large boards
+    private final long[] cellOf;          // Ghost -> cell it stands on
+    private final int[] next;             // Ghost -> ghost below it on the same cell
+    private final int[] prev;             // Ghost -> ghost above it on the same cell
+
+    public OccupancyIndex(int ghostCount, long cellCount) {
+        if (cellCount <= DENSE_LIMIT) {
+            denseTop = new int[(int) cellCount];
+            Arrays.fill(denseTop, NONE);
+            sparseTop = null;
+        } else {
+            denseTop = null;
+            sparseTop = new LongHashMap(ghostCount, NONE);
+        }
+        cellOf = new long[ghostCount];
+        next = new int[ghostCount];
+        prev = new int[ghostCount];
+        Arrays.fill(cellOf, -1);
+    }
+
+    private OccupancyIndex(OccupancyIndex other) {
+        denseTop = other.denseTop == null ? null : other.denseTop.clone();
+        sparseTop = other.sparseTop == null ? null : other.sparseTop.copy();
+        cellOf = other.cellOf.clone();
+        next = other.next.clone();
+        prev = other.prev.clone();
+    }
+
+    // An independent index with the same ghosts on the same cells
+    public OccupancyIndex copy() {
+        return new OccupancyIndex(this);
+    }
+
+    /*
+     * Make this index equal to another one over the same board and ghosts.
+     * Only the cells where the ghosts of either stand are touched, so it
+     * costs the same on any board size.
+     */
+    public void copyFrom(OccupancyIndex other) {
+        for (int ghost = 0; ghost < cellOf.length; ghost++) {
+            if (cellOf[ghost] >= 0)
+                setTop(cellOf[ghost], NONE);
+        }
+        System.arraycopy(other.cellOf, 0, cellOf, 0, cellOf.length);
+        System.arraycopy(other.next, 0, next, 0, next.length);
+        System.arraycopy(other.prev, 0, prev, 0, prev.length);
+        for (int ghost = 0; ghost < cellOf.length; ghost++) {
+            if (cellOf[ghost] >= 0 && prev[ghost] == NONE)
+                setTop(cellOf[ghost], ghost);
+        }
+    }
+
+    // Put a ghost on a cell, below any ghost with a higher index
+    public void add(int ghost, long cell) {
+        int above = NONE;
+        int below = top(cell);
+        while (below != NONE && below > ghost) {
+            above = below;
+            below = next[below];
+        }
+        next[ghost] = below;
+        prev[ghost] = above;
+        if (below != NONE)
+            prev[below] = ghost;
+        if (above != NONE)
+            next[above] = ghost;
+        else
+            setTop(cell, ghost);
+        cellOf[ghost] = cell;
+    }
+
+    public void remove(int ghost) {
+        long cell = cellOf[ghost];
+        if (cell < 0)
+            return;
+        if (prev[ghost] != NONE)
+            next[prev[ghost]] = next[ghost];
+        else
+            setTop(cell, next[ghost]);
+        if (next[ghost] != NONE)
+            prev[next[ghost]] = prev[ghost];
+        cellOf[ghost] = -1;
+    }
+
+    public void move(int ghost, long cell) {
+        if (cellOf[ghost] == cell)
+            return;
+        remove(ghost);
+        add(ghost, cell);
+    }
+
+    public boolean isOccupied(long cell) {
+        return top(cell) != NONE;
+    }
+
+    // Ghost drawn on the cell, or -1 if the cell is free
+    public int top(long cell) {
+        if (denseTop != null)
+            return denseTop[(int) cell];
+        return (int) sparseTop.get(cell);
+    }
+
+    private void setTop(long cell, int ghost) {
+        if (denseTop != null)
+            denseTop[(int) cell] = ghost;
+        else if (ghost == NONE)
+            sparseTop.remove(cell);
+        else
+            sparseTop.put(cell, ghost);
+    }
+}
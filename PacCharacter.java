@@ -1,37 +1,37 @@
 /**
  * Either a Pacman or a Ghost is considered as a PacCharacter.
+ *
+ * Boards keep their characters in a CharacterStore instead; a
+ * PacCharacter holds one in a store of a single slot.
  */
 
 public class PacCharacter{
 
-    private char appearance;
-    private int row;
-    private int col;
+    private final CharacterStore store;
+    private final int index;
 
     public PacCharacter(int row, int col, char appearance) {
-        this.row = row;
-        this.col = col;
-        this.appearance = appearance;
+        this.store = new CharacterStore(1);
+        this.index = store.add(row, col, appearance);
     }
 
     public int getRow() {
-        return row;
+        return store.getRow(index);
     }
 
     public int getCol() {
-        return col;
+        return store.getCol(index);
     }
 
     public char getAppearance() {
-        return appearance;
+        return store.getAppearance(index);
     }
 
     public void setPosition(int row, int col) {
-        this.row = row;
-        this.col = col;
+        store.setPosition(index, row, col);
     }
 
     public void setAppearance(char appearance) {
-        this.appearance = appearance;
+        store.setAppearance(index, appearance);
     }
 }
@@ -0,0 +1,345 @@
+/**
+ * PacmanServer.java
+ *
+ * Hosts many independent games behind a line based TCP protocol on the
+ * loopback interface. Every connection is a session with a Board of its
+ * own, served by a thread of its own: a virtual thread where the JVM has
+ * them, a pooled platform thread otherwise. A session that sends nothing
+ * for the idle timeout is closed.
+ *
+ * Commands, one per line, and their replies:
+ *
+ *   MOVE dir     dir is UP, DOWN, LEFT, RIGHT or STAY, or its first letter
+ *                -> OK score status, or BLOCKED score status
+ *   STATE        -> STATE size score dots status, then one line per row;
+ *                   boards of more than MAX_STATE_BYTES are refused
+ *   SAVE name    save the board to name in the save directory
+ *                -> SAVED name
+ *   RESTART      start a new game -> RESTARTED size
+ *   QUIT         -> BYE
+ *
+ * status is RUNNING, CAUGHT or WON. Anything else gets ERR and a reason.
+ */
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+
+public class PacmanServer
+{
+  private int port = 7070;
+  private int boardSize = 10;       // Side length of every new board
+  private int ghostCount = 4;       // Ghosts on every new board
+  private int idleSeconds = 300;    // A session quiet for this long is closed
+  private Path saveDirectory = Paths.get(".");
+
+  // Largest board STATE sends, counting a newline per row
+  static final long MAX_STATE_BYTES = 1L << 30;
+
+  public static void main(String[] args) throws IOException
+  {
+    PacmanServer server = new PacmanServer();
+    server.processArgs(args);
+    server.serve();
+  }
+
+
+  /*
+   * Name:      serve
+   * Purpose:   Accept connections until the process is stopped.
+   */
+  public void serve() throws IOException
+  {
+    ExecutorService executor = newSessionExecutor();
+    try (ServerSocket listener = new ServerSocket(port, 512, InetAddress.getLoopbackAddress())) {
+      System.out.println("Listening on " + listener.getLocalSocketAddress()
+          + " (" + boardSize + "x" + boardSize + ", " + ghostCount + " ghosts)");
+      while (true) {
+        Socket socket = listener.accept();
+        executor.execute(new Session(socket));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /*
+   * Name:      newSessionExecutor
+   * Purpose:   One virtual thread per session on JVMs that have them,
+   *            looked up reflectively so the server still builds and runs
+   *            on older ones, where a cached pool of daemon threads is used.
+   */
+  private static ExecutorService newSessionExecutor()
+  {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "pacman-session");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+
+  /*
+   * Name:      Session
+   * Purpose:   One connection and its game. Replies are assembled in a
+   *            buffer owned by the session and reused for every command.
+   */
+  private class Session implements Runnable
+  {
+    private final Socket socket;
+    private Board board;
+    private byte[] reply = new byte[256];
+    private int length;               // Bytes of reply in use
+    private char[] row = new char[0];   // Scratch for writeCells, kept between replies
+    private long[] cells = new long[0];
+
+    Session(Socket socket)
+    {
+      this.socket = socket;
+    }
+
+    @Override
+    public void run()
+    {
+      try (Socket s = socket) {
+        s.setSoTimeout(idleSeconds * 1000);
+        s.setTcpNoDelay(true);
+        BufferedReader in = new BufferedReader(
+            new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+        OutputStream out = new BufferedOutputStream(s.getOutputStream());
+        board = new Board(boardSize, ghostCount);
+
+        String line;
+        while ((line = in.readLine()) != null) {
+          length = 0;
+          boolean open = handle(line.trim());
+          out.write(reply, 0, length);
+          out.flush();
+          if (!open)
+            break;
+        }
+      } catch (SocketTimeoutException e) {
+        // Idle for too long; closing the socket evicts the session
+      } catch (IOException e) {
+        // The client went away
+      }
+    }
+
+    /*
+     * Name:      handle
+     * Purpose:   Run one command and put its reply in the buffer.
+     * Return:    false once the session should end
+     */
+    private boolean handle(String line)
+    {
+      int space = line.indexOf(' ');
+      String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+      String argument = space < 0 ? "" : line.substring(space + 1).trim();
+
+      switch (command) {
+        case "MOVE":
+          Direction direction = parseDirection(argument);
+          if (direction == null) {
+            put("ERR unknown direction\n");
+          } else {
+            put(board.tryMove(direction) ? "OK " : "BLOCKED ");
+            put(board.getScore());
+            put(' ');
+            put(status());
+            put('\n');
+          }
+          return true;
+        case "STATE":
+          long cellBytes = (long) board.GRID_SIZE * (board.GRID_SIZE + 1);
+          if (cellBytes > MAX_STATE_BYTES) {
+            put("ERR board too large for STATE\n");
+            return true;
+          }
+          put("STATE ");
+          put(board.GRID_SIZE);
+          put(' ');
+          put(board.getScore());
+          put(' ');
+          put(board.getRemainingDots());
+          put(' ');
+          put(status());
+          put('\n');
+          ensure((int) cellBytes);
+          if (row.length < board.GRID_SIZE)
+            row = new char[board.GRID_SIZE];
+          if (cells.length != board.getGhostCount() + 1)
+            cells = new long[board.getGhostCount() + 1];
+          length = board.writeCells(reply, length, row, cells);
+          return true;
+        case "SAVE":
+          save(argument);
+          return true;
+        case "RESTART":
+          board = new Board(boardSize, ghostCount);
+          put("RESTARTED ");
+          put(board.GRID_SIZE);
+          put('\n');
+          return true;
+        case "QUIT":
+          put("BYE\n");
+          return false;
+        default:
+          put("ERR unknown command\n");
+          return true;
+      }
+    }
+
+    // Only plain file names are accepted, so nothing lands outside the save directory
+    private void save(String name)
+    {
+      if (!name.matches("[A-Za-z0-9._-]+") || name.startsWith(".")) {
+        put("ERR bad file name\n");
+        return;
+      }
+      try {
+        String file = saveDirectory.resolve(name).toString();
+        if (name.endsWith(Board.BINARY_EXTENSION))
+          board.saveBoardBinary(file);
+        else
+          board.saveBoard(file);
+        put("SAVED ");
+        put(name);
+        put('\n');
+      } catch (IOException e) {
+        put("ERR could not save\n");
+      }
+    }
+
+    private String status()
+    {
+      if (board.isCaught())
+        return "CAUGHT";
+      return board.isWon() ? "WON" : "RUNNING";
+    }
+
+    private void ensure(int more)
+    {
+      if (length + more > reply.length)
+        reply = Arrays.copyOf(reply, (int) Math.min(Integer.MAX_VALUE - 8,
+            Math.max((long) length + more, reply.length * 2L)));
+    }
+
+    private void put(char c)
+    {
+      ensure(1);
+      reply[length++] = (byte) c;
+    }
+
+    private void put(String text)
+    {
+      ensure(text.length());
+      for (int i = 0; i < text.length(); i++)
+        reply[length++] = (byte) text.charAt(i);
+    }
+
+    // Decimal digits written straight into the buffer
+    private void put(long value)
+    {
+      ensure(20);
+      if (value < 0) {
+        reply[length++] = '-';
+        value = -value;
+      }
+      int start = length;
+      do {
+        reply[length++] = (byte) ('0' + value % 10);
+        value /= 10;
+      } while (value != 0);
+      for (int i = start, j = length - 1; i < j; i++, j--) {
+        byte digit = reply[i];
+        reply[i] = reply[j];
+        reply[j] = digit;
+      }
+    }
+  }
+
+  // A direction by name or first letter, or null
+  private static Direction parseDirection(String name)
+  {
+    name = name.toUpperCase();
+    for (Direction direction : Direction.values()) {
+      if (direction.name().equals(name)
+          || (name.length() == 1 && direction.name().charAt(0) == name.charAt(0)))
+        return direction;
+    }
+    return null;
+  }
+
+
+
+  // The method used to process the command line arguments
+  private void processArgs(String[] args)
+  {
+    // Arguments must come in pairs
+    if((args.length % 2) != 0)
+    {
+      printUsage();
+      System.exit(-1);
+    }
+
+    try {
+      for(int i = 0; i < args.length; i += 2)
+      {
+        if(args[i].equals("-p"))
+          port = Integer.parseInt(args[i + 1]);
+        else if(args[i].equals("-s"))
+          boardSize = Integer.parseInt(args[i + 1]);
+        else if(args[i].equals("-g"))
+          ghostCount = Integer.parseInt(args[i + 1]);
+        else if(args[i].equals("-t"))
+          idleSeconds = Integer.parseInt(args[i + 1]);
+        else if(args[i].equals("-d"))
+          saveDirectory = Paths.get(args[i + 1]);
+        else
+        {   // Incorrect Argument
+          printUsage();
+          System.exit(-1);
+        }
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      System.out.println(e.getMessage());
+      printUsage();
+      System.exit(-1);
+    }
+
+    // Same lower bound on the board size as GuiPacman
+    if(boardSize < 3)
+      boardSize = 10;
+    if(ghostCount < 0)
+      ghostCount = 4;
+    if(idleSeconds < 1)
+      idleSeconds = 300;
+  }
+
+  // Print the Usage Message
+  private static void printUsage()
+  {
+    System.out.println("PacmanServer");
+    System.out.println("Usage:  PacmanServer [-p port] [-s size] [-g ghosts] [-t seconds] [-d directory]");
+    System.out.println();
+    System.out.println("  Command line arguments come in pairs of the form: <command> <argument>");
+    System.out.println();
+    System.out.println("  -p [port]    -> Port to listen on, on the loopback interface only. The default is 7070.");
+    System.out.println("  -s [size]    -> Side length of every board. The default is 10.");
+    System.out.println("  -g [ghosts]  -> Ghosts on every board. The default is 4.");
+    System.out.println("  -t [seconds] -> Sessions idle this long are closed. The default is 300.");
+    System.out.println("  -d [dir]     -> Directory SAVE writes to. The default is the current directory.");
+  }
+}
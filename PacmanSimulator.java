@@ -0,0 +1,333 @@
+/**
+ * PacmanSimulator.java
+ *
+ * Plays large batches of independent Pac-Man games without a GUI, spread
+ * over every core with a work-stealing fork/join pool, and reports
+ * throughput together with score and survival statistics.
+ */
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+public class PacmanSimulator
+{
+  private int games = 1000;          // Number of games to play
+  private int boardSize = 10;        // Side length of every board
+  private int ghostCount = 4;        // Ghosts on every board
+  private int maxMoves = 1000;       // A game that survives this long is stopped
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private long seed = 0;             // Game i is played with seed + i
+  private String policyName = "greedy";
+  private long budgetMillis = MctsPolicy.DEFAULT_BUDGET_MILLIS; // Search time per move, mcts only
+  private Board layout;              // Every game starts as a copy of this, if given
+  private String frameFile;          // The first game is recorded here as a frame stream, if given
+
+  // Games are split in halves until a task holds no more than this many
+  private static final int GAMES_PER_TASK = 16;
+
+  public static void main(String[] args)
+  {
+    PacmanSimulator simulator = new PacmanSimulator();
+    simulator.processArgs(args);
+    simulator.run();
+  }
+
+
+  /*
+   * Name:      run
+   * Purpose:   Play every game and print the aggregated results.
+   */
+  public Stats run()
+  {
+    MovePolicy policy = policyName.equals("mcts")
+        ? new MctsPolicy(budgetMillis, threads) : MovePolicy.forName(policyName);
+    ForkJoinPool pool = new ForkJoinPool(threads);
+
+    long start = System.nanoTime();
+    Stats stats = pool.invoke(new GameBatch(policy, 0, games));
+    long elapsed = System.nanoTime() - start;
+    pool.shutdown();
+
+    double seconds = elapsed / 1e9;
+    System.out.println("Games:        " + stats.games + " on " + threads + " threads"
+        + " (" + boardSize + "x" + boardSize + ", " + ghostCount + " ghosts, policy " + policyName
+        + (layout != null && layout.getMaze() != null ? ", " + layout.getMaze().getWallCount() + " walls" : "")
+        + ")");
+    System.out.printf("Elapsed:      %.3f s%n", seconds);
+    System.out.printf("Throughput:   %.0f moves/sec, %.1f games/sec%n",
+        stats.moves / seconds, stats.games / seconds);
+    System.out.printf("Score:        mean %.1f, min %d, max %d%n",
+        (double) stats.totalScore / stats.games, stats.minScore, stats.maxScore);
+    System.out.printf("Survival:     %.1f%% survived %d moves, mean %.1f moves per game%n",
+        100.0 * stats.survived / stats.games, maxMoves, (double) stats.moves / stats.games);
+    System.out.printf("Cleared:      %.1f%% ate every dot, mean coverage %.1f%%%n",
+        100.0 * stats.won / stats.games, stats.totalCoverage / stats.games);
+    if (policy instanceof MctsPolicy) {
+      MctsPolicy search = (MctsPolicy) policy;
+      System.out.printf("Search:       %.0f iterations/sec, %.0f simulated moves/sec%n",
+          search.getIterations() / seconds, search.getSimulatedMoves() / seconds);
+    }
+    return stats;
+  }
+
+
+  /*
+   * Name:      playGame
+   * Purpose:   Play one game to the end, or until maxMoves is reached.
+   */
+  private void playGame(MovePolicy policy, long gameSeed, Stats stats)
+  {
+    // Seeding both the policy and the cherries makes games repeatable
+    Random random = new Random(gameSeed);
+    Board board;
+    if (layout != null) {
+      // Copies share the layout's maze, so only the game state is copied
+      board = layout.copy();
+      board.setRandom(new SplittableRandom(gameSeed));
+    } else {
+      board = new Board(boardSize, ghostCount, new SplittableRandom(gameSeed));
+    }
+
+    FrameWriter frames = gameSeed == seed ? openFrames(board) : null;
+    int moves = 0;
+    while (moves < maxMoves && !board.isGameOver()) {
+      Direction direction = policy.nextMove(board, random);
+      if (direction == null || !board.tryMove(direction))
+        break;
+      moves++;
+      if (frames != null)
+        frames = writeFrame(frames, board);
+    }
+    if (frames != null)
+      closeFrames(frames);
+    stats.add(board.getScore(), moves, !board.isCaught(), board.isWon(), board.getCoverage());
+  }
+
+
+  /*
+   * Name:      openFrames
+   * Purpose:   Start the frame stream of the first game, if one was asked for.
+   * Return:    the writer, or null if there is none
+   */
+  private FrameWriter openFrames(Board board)
+  {
+    if (frameFile == null)
+      return null;
+    try {
+      FrameWriter frames = new FrameWriter(FileChannel.open(Paths.get(frameFile),
+          StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE),
+          FrameWriter.DEFAULT_KEYFRAME_INTERVAL);
+      frames.write(board);
+      return frames;
+    } catch (IOException e) {
+      System.out.println("Could not record frames to " + frameFile + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  // Write a frame; a failed stream is closed and recording stops
+  private FrameWriter writeFrame(FrameWriter frames, Board board)
+  {
+    try {
+      frames.write(board);
+      return frames;
+    } catch (IOException e) {
+      System.out.println("Could not record frames to " + frameFile + ": " + e.getMessage());
+      closeFrames(frames);
+      return null;
+    }
+  }
+
+  private void closeFrames(FrameWriter frames)
+  {
+    try {
+      frames.close();
+    } catch (IOException e) {
+      System.out.println("Could not record frames to " + frameFile + ": " + e.getMessage());
+    }
+  }
+
+
+  /*
+   * Name:      GameBatch
+   * Purpose:   A range of games that splits itself until it is small
+   *            enough to play on one worker.
+   */
+  private class GameBatch extends RecursiveTask<Stats>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final MovePolicy policy;
+    private final int from;
+    private final int to;
+
+    GameBatch(MovePolicy policy, int from, int to)
+    {
+      this.policy = policy;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Stats compute()
+    {
+      if (to - from <= GAMES_PER_TASK) {
+        Stats stats = new Stats();
+        for (int game = from; game < to; game++)
+          playGame(policy, seed + game, stats);
+        return stats;
+      }
+      int middle = (from + to) >>> 1;
+      GameBatch left = new GameBatch(policy, from, middle);
+      left.fork();
+      Stats right = new GameBatch(policy, middle, to).compute();
+      return left.join().merge(right);
+    }
+  }
+
+
+  /*
+   * Name:      Stats
+   * Purpose:   Totals for a set of finished games.
+   */
+  public static class Stats
+  {
+    long games;
+    long moves;
+    long totalScore;
+    long survived;
+    long won;
+    double totalCoverage;
+    int minScore = Integer.MAX_VALUE;
+    int maxScore = Integer.MIN_VALUE;
+
+    void add(int score, int gameMoves, boolean alive, boolean cleared, double coverage)
+    {
+      games++;
+      moves += gameMoves;
+      totalScore += score;
+      if (alive) survived++;
+      if (cleared) won++;
+      totalCoverage += coverage;
+      minScore = Math.min(minScore, score);
+      maxScore = Math.max(maxScore, score);
+    }
+
+    Stats merge(Stats other)
+    {
+      games += other.games;
+      moves += other.moves;
+      totalScore += other.totalScore;
+      survived += other.survived;
+      won += other.won;
+      totalCoverage += other.totalCoverage;
+      minScore = Math.min(minScore, other.minScore);
+      maxScore = Math.max(maxScore, other.maxScore);
+      return this;
+    }
+  }
+
+
+
+  // The method used to process the command line arguments
+  private void processArgs(String[] args)
+  {
+    // Arguments must come in pairs
+    if((args.length % 2) != 0)
+    {
+      printUsage();
+      System.exit(-1);
+    }
+
+    try {
+      for(int i = 0; i < args.length; i += 2)
+      {
+        if(args[i].equals("-c"))
+          games = Integer.parseInt(args[i + 1]);
+        else if(args[i].equals("-s"))
+          boardSize = Integer.parseInt(args[i + 1]);
+        else if(args[i].equals("-g"))
+          ghostCount = Integer.parseInt(args[i + 1]);
+        else if(args[i].equals("-m"))
+          maxMoves = Integer.parseInt(args[i + 1]);
+        else if(args[i].equals("-t"))
+          threads = Integer.parseInt(args[i + 1]);
+        else if(args[i].equals("-x"))
+          seed = Long.parseLong(args[i + 1]);
+        else if(args[i].equals("-b"))
+          budgetMillis = Long.parseLong(args[i + 1]);
+        else if(args[i].equals("-i"))
+          layout = loadLayout(args[i + 1]);
+        else if(args[i].equals("-f"))
+          frameFile = args[i + 1];
+        else if(args[i].equals("-p"))
+        {   // Reject unknown policies now rather than after the pool starts
+          MovePolicy.forName(args[i + 1]);
+          policyName = args[i + 1];
+        }
+        else
+        {   // Incorrect Argument
+          printUsage();
+          System.exit(-1);
+        }
+      }
+    }
+    catch (IllegalArgumentException e)
+    {
+      System.out.println(e.getMessage());
+      printUsage();
+      System.exit(-1);
+    }
+
+    // Same lower bound on the board size as GuiPacman
+    if(boardSize < 3)
+      boardSize = 10;
+    if(threads < 1)
+      threads = 1;
+    if(ghostCount < 0)
+      ghostCount = 4;
+    if(layout != null)
+    {
+      boardSize = layout.GRID_SIZE;
+      ghostCount = layout.getGhostCount();
+    }
+  }
+
+  private static Board loadLayout(String file)
+  {
+    try {
+      return new Board(file);
+    } catch (IOException e) {
+      System.out.println("Could not load " + file + ": " + e.getMessage());
+      System.exit(-1);
+      return null;
+    }
+  }
+
+  // Print the Usage Message
+  private static void printUsage()
+  {
+    System.out.println("PacmanSimulator");
+    System.out.println("Usage:  PacmanSimulator [-c games] [-s size] [-g ghosts] [-m moves] [-t threads] [-x seed] [-p policy] [-b ms]");
+    System.out.println("                        [-i layout] [-f frames]");
+    System.out.println();
+    System.out.println("  Command line arguments come in pairs of the form: <command> <argument>");
+    System.out.println();
+    System.out.println("  -c [games]   -> Number of games to play. The default is 1000.");
+    System.out.println("  -s [size]    -> Side length of every board. The default is 10.");
+    System.out.println("  -g [ghosts]  -> Ghosts on every board, as in GuiPacman. The default is 4.");
+    System.out.println("  -m [moves]   -> A game still alive after this many moves is stopped. The default is 1000.");
+    System.out.println("  -t [threads] -> Worker threads. The default is one per core.");
+    System.out.println("  -x [seed]    -> Seed of the first game; game i uses seed + i. The default is 0.");
+    System.out.println("  -p [policy]  -> How Pac-man is steered: random, greedy or mcts. The default is greedy.");
+    System.out.println("  -b [ms]      -> Time the mcts policy searches before every move. The default is "
+        + MctsPolicy.DEFAULT_BUDGET_MILLIS + ".");
+    System.out.println("  -i [file]    -> Start every game from a saved board, e.g. a level with '#' walls.");
+    System.out.println("                  Its size and ghosts replace -s and -g.");
+    System.out.println("  -f [file]    -> Record the first game as a frame stream, see FrameWriter.");
+  }
+}
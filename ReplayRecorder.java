@@ -0,0 +1,146 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records a game so it can be replayed and checked later.
+ *
+ * A game is fully determined by the starting board, the seed of its
+ * SplittableRandom and the moves played, so that is all a replay log holds:
+ *
+ *   header   magic, version, seed, then either the size and ghost count of
+ *            a generated board or a whole binary board (see Board)
+ *   moves    one 3-bit code per tick, 21 to a long; a code is a Direction
+ *            ordinal, RESTART for a new game, PAD after the last move. A
+ *            new game on a generated board is generated again; one on a
+ *            stored board starts from the stored board
+ *   trailer  move count, final score, final Board.stateHash, end magic
+ *
+ * A log without a trailer was cut short; its moves can still be replayed
+ * but not verified.
+ */
+public class ReplayRecorder implements Closeable {
+
+    static final int MAGIC = 0x50414352;          // "PACR"
+    static final int VERSION = 1;
+    static final int TRAILER_MAGIC = 0x50414345;  // "PACE"
+    static final int TRAILER_BYTES = 24;
+    static final byte GENERATED = 0;              // Board rebuilt from size and ghost count
+    static final byte EMBEDDED = 1;               // Board stored in the log
+
+    static final int BITS_PER_MOVE = 3;
+    static final int MOVES_PER_WORD = 21;
+    static final int RESTART = 7;
+    static final int PAD = 6;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 13);
+    private long word;          // Moves not yet written
+    private int wordMoves;      // How many moves are in word
+    private long moveCount;
+
+    /*
+     * Start a log for a board that has not been played yet.
+     *
+     * @param:  The file to write
+     * @param:  The board as it starts
+     * @param:  The seed of the SplittableRandom the board was given
+     * @param:  True if new Board(size, ghostCount, new SplittableRandom(seed))
+     *          rebuilds the board, false to store the board itself in the log
+     */
+    public ReplayRecorder(String file, Board board, long seed, boolean generated)
+            throws IOException {
+        channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                                   StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(seed);
+            buffer.put(generated ? GENERATED : EMBEDDED);
+            if (generated) {
+                buffer.putInt(board.GRID_SIZE);
+                buffer.putInt(board.getGhostCount());
+            } else {
+                // The board's length is filled in once it has been written
+                buffer.putLong(0);
+                flush();
+                long start = channel.position();
+                board.writeBinary(channel);
+                long length = channel.position() - start;
+                ByteBuffer field = ByteBuffer.allocate(Long.BYTES).putLong(length);
+                field.flip();
+                channel.write(field, start - Long.BYTES);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // The direction Pac-man was sent this tick, STAY if he stood still
+    public void record(Direction direction) throws IOException {
+        append(direction.ordinal());
+    }
+
+    // The game was over and a new one of the same size started
+    public void recordRestart() throws IOException {
+        append(RESTART);
+    }
+
+    private void append(int code) throws IOException {
+        word |= (long) code << (wordMoves * BITS_PER_MOVE);
+        moveCount++;
+        if (++wordMoves == MOVES_PER_WORD) {
+            putWord();
+        }
+    }
+
+    private void putWord() throws IOException {
+        if (buffer.remaining() < Long.BYTES)
+            flush();
+        buffer.putLong(word);
+        word = 0;
+        wordMoves = 0;
+    }
+
+    private void flush() throws IOException {
+        BitGrid.flush(channel, buffer);
+    }
+
+    /*
+     * Write the trailer and close the log.
+     *
+     * @param:  The board the recorded moves were played on, as it ends
+     */
+    public void close(Board board) throws IOException {
+        try {
+            if (wordMoves > 0) {
+                while (wordMoves < MOVES_PER_WORD)
+                    word |= (long) PAD << (wordMoves++ * BITS_PER_MOVE);
+                putWord();
+            }
+            if (buffer.remaining() < TRAILER_BYTES)
+                flush();
+            buffer.putLong(moveCount);
+            buffer.putInt(board.getScore());
+            buffer.putLong(board.stateHash());
+            buffer.putInt(TRAILER_MAGIC);
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Close without a trailer, leaving a log that can only be replayed
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
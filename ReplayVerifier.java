@@ -0,0 +1,199 @@
+/**
+ * ReplayVerifier.java
+ *
+ * Replays a log written by ReplayRecorder without a GUI, as fast as the
+ * board can move, and checks that it ends with the recorded score and
+ * state hash. A mismatch means the game logic no longer plays the same
+ * way it did when the log was recorded.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+
+public class ReplayVerifier
+{
+  // Magic, version, seed, board kind and either size and ghosts or a length
+  private static final int HEADER_BYTES = 25;
+
+  private String logFile;         // The replay log to check
+  private boolean verbose;        // Print every move as it is replayed
+
+  // Set when the log has a trailer to compare against
+  private boolean complete;
+  private long expectedMoves;
+  private int expectedScore;
+  private long expectedHash;
+
+  public static void main(String[] args)
+  {
+    ReplayVerifier verifier = new ReplayVerifier();
+    verifier.processArgs(args);
+    try {
+      System.exit(verifier.run() ? 0 : 1);
+    } catch (IOException e) {
+      System.out.println("Could not replay " + verifier.logFile + ": " + e.getMessage());
+      System.exit(-1);
+    }
+  }
+
+
+  /*
+   * Name:      run
+   * Purpose:   Replay the whole log and report whether it verified.
+   * Return:    false if the replay ended differently from the recording
+   */
+  public boolean run() throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(Paths.get(logFile), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_BYTES)
+        throw new IOException("not a replay log");
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+      if (header.getInt() != ReplayRecorder.MAGIC
+          || header.getInt() != ReplayRecorder.VERSION)
+        throw new IOException("not a replay log");
+      long seed = header.getLong();
+      SplittableRandom random = new SplittableRandom(seed);
+
+      Board board;
+      long movesStart;
+      byte kind = header.get();
+      if (kind == ReplayRecorder.GENERATED) {
+        board = new Board(header.getInt(), header.getInt(), random);
+        movesStart = HEADER_BYTES;
+      } else if (kind == ReplayRecorder.EMBEDDED) {
+        long length = header.getLong();
+        board = new Board(channel, HEADER_BYTES);
+        board.setRandom(random);
+        movesStart = HEADER_BYTES + length;
+      } else {
+        throw new IOException("unknown board kind " + kind);
+      }
+
+      // A new game on an embedded board starts from the board again
+      Board layout = kind == ReplayRecorder.EMBEDDED ? board.copy() : null;
+
+      long movesEnd = readTrailer(channel, size, movesStart);
+      long start = System.nanoTime();
+      long moves = 0;
+      int games = 1;
+
+      // Walk the moves straight out of a read-only mapping of the file
+      ByteBuffer words = channel.map(FileChannel.MapMode.READ_ONLY, movesStart, movesEnd - movesStart);
+      Direction[] directions = Direction.values();
+      replay:
+      while (words.remaining() >= Long.BYTES) {
+        long word = words.getLong();
+        for (int i = 0; i < ReplayRecorder.MOVES_PER_WORD; i++) {
+          int code = (int) (word >>> (i * ReplayRecorder.BITS_PER_MOVE)) & 7;
+          if (code == ReplayRecorder.PAD)
+            break replay;
+          moves++;
+          if (code == ReplayRecorder.RESTART) {
+            if (layout != null) {
+              board = layout.copy();
+              board.setRandom(random);
+            } else {
+              board = new Board(board.GRID_SIZE, board.getGhostCount(), random);
+            }
+            games++;
+            continue;
+          }
+          if (code >= directions.length)
+            throw new IOException("bad move code " + code + " at move " + moves);
+          if (verbose)
+            System.out.println("Moving " + directions[code]);
+          board.move(directions[code]);
+        }
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      System.out.println("Replayed:     " + moves + " moves in " + games + " game(s) on a "
+          + board.GRID_SIZE + "x" + board.GRID_SIZE + " board");
+      System.out.printf("Elapsed:      %.3f s, %.0f moves/sec%n", seconds, moves / Math.max(seconds, 1e-9));
+      System.out.println("Score:        " + board.getScore());
+      if (!complete) {
+        System.out.println("Result:       UNVERIFIED, the log has no trailer");
+        return true;
+      }
+
+      boolean ok = true;
+      if (moves != expectedMoves) {
+        System.out.println("Moves differ: recorded " + expectedMoves + ", replayed " + moves);
+        ok = false;
+      }
+      if (board.getScore() != expectedScore) {
+        System.out.println("Score differs: recorded " + expectedScore + ", replayed " + board.getScore());
+        ok = false;
+      }
+      if (board.stateHash() != expectedHash) {
+        System.out.println("State hash differs: recorded " + Long.toHexString(expectedHash)
+            + ", replayed " + Long.toHexString(board.stateHash()));
+        ok = false;
+      }
+      System.out.println("Result:       " + (ok ? "VERIFIED" : "MISMATCH"));
+      return ok;
+    }
+  }
+
+  // Read the trailer if there is one and return where the moves end
+  private long readTrailer(FileChannel channel, long size, long movesStart) throws IOException
+  {
+    if (size - movesStart < ReplayRecorder.TRAILER_BYTES)
+      return size - (size - movesStart) % Long.BYTES;
+    ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY,
+                                     size - ReplayRecorder.TRAILER_BYTES, ReplayRecorder.TRAILER_BYTES);
+    trailer.position(ReplayRecorder.TRAILER_BYTES - Integer.BYTES);
+    if (trailer.getInt() != ReplayRecorder.TRAILER_MAGIC)
+      return size - (size - movesStart) % Long.BYTES;
+    trailer.rewind();
+    complete = true;
+    expectedMoves = trailer.getLong();
+    expectedScore = trailer.getInt();
+    expectedHash = trailer.getLong();
+    return size - ReplayRecorder.TRAILER_BYTES;
+  }
+
+
+  /*
+   * Name:      processArgs
+   * Purpose:   Read the command line arguments.
+   */
+  private void processArgs(String[] args)
+  {
+    if ((args.length % 2) != 0) {
+      printUsage();
+      System.exit(-1);
+    }
+    for (int i = 0; i < args.length; i += 2) {
+      if (args[i].equals("-l")) {
+        logFile = args[i + 1];
+      } else if (args[i].equals("-v")) {
+        verbose = Boolean.parseBoolean(args[i + 1]);
+      } else {
+        printUsage();
+        System.exit(-1);
+      }
+    }
+    if (logFile == null) {
+      printUsage();
+      System.exit(-1);
+    }
+  }
+
+  // Print the Usage Message
+  private static void printUsage()
+  {
+    System.out.println("ReplayVerifier");
+    System.out.println("Usage:  ReplayVerifier -l file [-v true|false]");
+    System.out.println();
+    System.out.println("  -l [file]  -> The replay log to play back, as written by GuiPacman -l");
+    System.out.println("  -v [bool]  -> Print every move as it is replayed. The default is false.");
+    System.out.println();
+    System.out.println("  Exits with status 0 when the replay matches the recording and 1 when it does not.");
+  }
+}
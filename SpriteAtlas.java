@@ -0,0 +1,96 @@
+/**
+ * SpriteAtlas.java
+ *
+ * Every tile sprite decoded once, scaled to the tile size and packed side
+ * by side into a single image. A cell is drawn by pointing an ImageView
+ * (or a Canvas drawImage call) at the atlas with the viewport of its sprite.
+ */
+
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import java.util.concurrent.*;
+
+
+public class SpriteAtlas
+{
+  // Grid characters and the sprite drawn for each, in atlas order
+  private static final char[] CELLS = { ' ', '*', 'P', 'D', 'L', 'R', 'U', 'C', 'X' };
+  private static final String[] FILES = {
+      "image/dot_eaten.png", "image/dot_uneaten.png", "image/pacman_right.png",
+      "image/inky_down.png", "image/pinky_left.png", "image/blinky_right.png",
+      "image/clyde_up.png", "image/cherry.png", "image/pacman_dead.png" };
+
+  // Walls have no image file; they are painted into the last slot
+  private static final char WALL = '#';
+  private static final Color WALL_FILL = Color.rgb(25, 25, 166);
+  private static final Color WALL_EDGE = Color.rgb(33, 33, 222);
+
+  private final int tileSize;
+  private final WritableImage image;
+  private final Rectangle2D[] viewports = new Rectangle2D[128]; // Indexed by grid character
+
+  /*
+   * Constructor
+   *
+   * Purpose:    Decode every sprite at the given size and copy it into
+   *             its slot of the atlas. Safe to run off the FX thread.
+   * Parameter:  Side length of a tile in pixels
+   */
+  public SpriteAtlas(int tileSize)
+  {
+    this.tileSize = tileSize;
+    image = new WritableImage(tileSize * (FILES.length + 1), tileSize);
+    PixelWriter writer = image.getPixelWriter();
+
+    for (int i = 0; i < FILES.length; i++) {
+      Image sprite = new Image(FILES[i], tileSize, tileSize, false, true);
+      if (sprite.isError())
+        throw new IllegalStateException("Could not load " + FILES[i], sprite.getException());
+      writer.setPixels(i * tileSize, 0, tileSize, tileSize, sprite.getPixelReader(), 0, 0);
+      viewports[CELLS[i]] = new Rectangle2D(i * tileSize, 0, tileSize, tileSize);
+    }
+
+    int left = FILES.length * tileSize;
+    int edge = Math.max(1, tileSize / 10);
+    for (int x = 0; x < tileSize; x++) {
+      for (int y = 0; y < tileSize; y++) {
+        boolean border = x < edge || y < edge || x >= tileSize - edge || y >= tileSize - edge;
+        writer.setColor(left + x, y, border ? WALL_EDGE : WALL_FILL);
+      }
+    }
+    viewports[WALL] = new Rectangle2D(left, 0, tileSize, tileSize);
+  }
+
+  /*
+   * Name:      loadAsync
+   * Purpose:   Build the atlas on a background thread so decoding overlaps
+   *            with setting up the stage.
+   */
+  public static Future<SpriteAtlas> loadAsync(final int tileSize)
+  {
+    FutureTask<SpriteAtlas> task = new FutureTask<>(() -> new SpriteAtlas(tileSize));
+    Thread loader = new Thread(task, "sprite-loader");
+    loader.setDaemon(true);
+    loader.start();
+    return task;
+  }
+
+  public Image getImage()
+  {
+    return image;
+  }
+
+  public int getTileSize()
+  {
+    return tileSize;
+  }
+
+  // Region of the atlas holding the sprite of a grid character
+  public Rectangle2D getViewport(char cell)
+  {
+    return viewports[cell];
+  }
+}
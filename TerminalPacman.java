@@ -0,0 +1,446 @@
+/**
+ * TerminalPacman.java
+ *
+ * Plays Pac-Man in a text terminal, for machines without JavaFX, e.g.
+ * over SSH. The terminal is put into raw mode with stty so every key
+ * press arrives at once, and the board is drawn with ANSI escapes.
+ *
+ * The screen is drawn in full only when the game starts and when the
+ * view has to scroll after Pac-man. After every other move only the
+ * cells the move changed are redrawn, each behind a cursor positioning
+ * escape, so the output per move follows the cells that changed and not
+ * the size of the board. Output is assembled in one byte buffer that is
+ * reused for every move.
+ *
+ * Boards bigger than the terminal are shown through a viewport that
+ * follows Pac-man.
+ */
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+
+public class TerminalPacman
+{
+  private static final byte ESC = 27;
+
+  // How long the rest of an escape sequence may lag behind its ESC
+  private static final long ESCAPE_WAIT_MILLIS = 50;
+
+  // Pac-man is kept at least this share of the view away from its edges
+  private static final int MARGIN_DIVISOR = 4;
+
+  private Board board;
+  private SplittableRandom random;
+  private final OutputStream out = new FileOutputStream(FileDescriptor.out);
+  private byte[] buffer = new byte[1 << 12];
+  private int length;               // Bytes of buffer in use
+  private int color;                // Color last selected, -1 if unknown
+
+  // Terminal size and the part of the board shown, in cells
+  private int screenRows = 24;
+  private int screenCols = 80;
+  private int viewTop;
+  private int viewLeft;
+  private int viewRows;
+  private int viewCols;
+
+  public static void main(String[] args)
+  {
+    TerminalPacman game = new TerminalPacman();
+    game.processArgs(args);
+    try {
+      game.play();
+    } catch (IOException e) {
+      System.out.println("IOException while playing: " + e.getMessage());
+      System.exit(-1);
+    }
+  }
+
+
+  /*
+   * Name:      play
+   * Purpose:   Take over the terminal and play until q is pressed.
+   */
+  public void play() throws IOException
+  {
+    String saved = stty("-g").trim();
+    readScreenSize();
+    stty("raw", "-echo");
+    try {
+      // Alternate screen, cursor hidden
+      put("\u001b[?1049h\u001b[?25l");
+      drawAll();
+      InputStream in = System.in;
+      int key;
+      while ((key = in.read()) >= 0) {
+        if (key == 'q' || key == 'Q' || key == 3) // 3 is Ctrl-C, which raw mode passes on
+          break;
+        Direction direction = null;
+        if (key == ESC) {
+          // Arrow keys arrive as ESC [ A to D; ESC on its own is ignored
+          if (readSoon(in) != '[')
+            continue;
+          direction = arrow(readSoon(in));
+        } else if (key == ' ') {
+          restart();
+        } else {
+          direction = letter(key);
+        }
+        if (direction != null && board.tryMove(direction))
+          drawMove();
+      }
+    } finally {
+      put("\u001b[0m\u001b[?25h\u001b[?1049l");
+      flush();
+      stty(saved);
+    }
+  }
+
+  /*
+   * Name:      readSoon
+   * Purpose:   Read the next byte of an escape sequence without waiting
+   *            for the next key press if the sequence has ended.
+   * Return:    the byte, or -1 if none came within ESCAPE_WAIT_MILLIS
+   */
+  private static int readSoon(InputStream in) throws IOException
+  {
+    long deadline = System.nanoTime() + ESCAPE_WAIT_MILLIS * 1_000_000L;
+    while (in.available() == 0) {
+      if (System.nanoTime() >= deadline)
+        return -1;
+      try {
+        Thread.sleep(1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return -1;
+      }
+    }
+    return in.read();
+  }
+
+  private static Direction arrow(int key)
+  {
+    switch (key) {
+      case 'A': return Direction.UP;
+      case 'B': return Direction.DOWN;
+      case 'C': return Direction.RIGHT;
+      case 'D': return Direction.LEFT;
+      default:  return null;
+    }
+  }
+
+  private static Direction letter(int key)
+  {
+    switch (Character.toLowerCase(key)) {
+      case 'w': return Direction.UP;
+      case 's': return Direction.DOWN;
+      case 'd': return Direction.RIGHT;
+      case 'a': return Direction.LEFT;
+      default:  return null;
+    }
+  }
+
+  // Start a new game of the same size once the current one is over
+  private void restart() throws IOException
+  {
+    if (!board.isGameOver())
+      return;
+    board = new Board(board.GRID_SIZE, board.getGhostCount(), random);
+    drawAll();
+  }
+
+
+  /*
+   * Name:      drawAll
+   * Purpose:   Clear the screen and draw every cell in the view.
+   */
+  private void drawAll() throws IOException
+  {
+    placeView();
+    color = -1;
+    put("\u001b[0m\u001b[2J");
+    for (int row = 0; row < viewRows; row++) {
+      moveTo(row, 0);
+      for (int col = 0; col < viewCols; col++) {
+        putCell(board.getCell(viewTop + row, viewLeft + col));
+        putByte((byte) ' ');
+      }
+    }
+    drawStatus();
+    flush();
+  }
+
+  /*
+   * Name:      drawMove
+   * Purpose:   Redraw the cells the last move changed, or everything if
+   *            the view has to follow Pac-man.
+   */
+  private void drawMove() throws IOException
+  {
+    if (!isInView(board.getPacmanRow(), board.getPacmanCol())) {
+      drawAll();
+      return;
+    }
+    int changed = board.sortChangedCells();
+    for (int i = 0; i < changed; i++) {
+      long cell = board.getChangedCell(i);
+      int row = (int) (cell / board.GRID_SIZE) - viewTop;
+      int col = (int) (cell % board.GRID_SIZE) - viewLeft;
+      if (row < 0 || col < 0 || row >= viewRows || col >= viewCols)
+        continue;
+      moveTo(row, col);
+      putCell(board.getCell(viewTop + row, viewLeft + col));
+    }
+    drawStatus();
+    flush();
+  }
+
+  // Score and game state on the line below the board
+  private void drawStatus()
+  {
+    moveTo(viewRows, 0);
+    setColor(0);
+    put("Score: ");
+    putNumber(board.getScore());
+    put("  Dots left: ");
+    putNumber(board.getRemainingDots());
+    if (board.isWon())
+      put("  You ate every dot! Space: new game, q: quit");
+    else if (board.isGameOver())
+      put("  Caught! Space: new game, q: quit");
+    else
+      put("  Arrows or WASD to move, q to quit");
+    put("\u001b[K");
+  }
+
+  // Whether Pac-man is in the view and clear of every edge the board goes on past
+  private boolean isInView(int row, int col)
+  {
+    return isInView(row, viewTop, viewRows) && isInView(col, viewLeft, viewCols);
+  }
+
+  private boolean isInView(int at, int first, int count)
+  {
+    int margin = count / MARGIN_DIVISOR;
+    int low = first > 0 ? first + margin : 0;
+    int high = first + count < board.GRID_SIZE ? first + count - margin : board.GRID_SIZE;
+    return at >= low && at < high;
+  }
+
+  // Size the view to the terminal and center it on Pac-man
+  private void placeView()
+  {
+    // A cell takes two columns, and the last line holds the status
+    viewRows = Math.min(board.GRID_SIZE, Math.max(1, screenRows - 1));
+    viewCols = Math.min(board.GRID_SIZE, Math.max(1, screenCols / 2));
+    viewTop = clamp(board.getPacmanRow() - viewRows / 2, board.GRID_SIZE - viewRows);
+    viewLeft = clamp(board.getPacmanCol() - viewCols / 2, board.GRID_SIZE - viewCols);
+  }
+
+  private static int clamp(int value, int max)
+  {
+    return Math.max(0, Math.min(value, max));
+  }
+
+
+  /*
+   * Name:      putCell
+   * Purpose:   Append a cell in its color, selecting the color only when
+   *            it differs from the one before.
+   */
+  private void putCell(char cell)
+  {
+    setColor(colorOf(cell));
+    putByte((byte) cell);
+  }
+
+  // ANSI foreground color of a cell, 0 for the terminal's own
+  private static int colorOf(char cell)
+  {
+    switch (cell) {
+      case '#': return 34;
+      case '*': return 37;
+      case 'C': return 31;
+      case 'P': return 93;
+      case 'X': return 91;
+      case ' ': return 0;
+      default:  return 95;      // A ghost
+    }
+  }
+
+  private void setColor(int code)
+  {
+    if (code == color)
+      return;
+    putByte(ESC);
+    putByte((byte) '[');
+    putNumber(code);
+    putByte((byte) 'm');
+    color = code;
+  }
+
+  // Put the cursor on a cell of the view; rows and columns count from 1
+  private void moveTo(int row, int col)
+  {
+    putByte(ESC);
+    putByte((byte) '[');
+    putNumber(row + 1);
+    putByte((byte) ';');
+    putNumber(2 * col + 1);
+    putByte((byte) 'H');
+  }
+
+  private void put(String text)
+  {
+    for (int i = 0; i < text.length(); i++)
+      putByte((byte) text.charAt(i));
+  }
+
+  // Decimal digits of a number, without building a String
+  private void putNumber(long value)
+  {
+    if (value < 0) {
+      putByte((byte) '-');
+      value = -value;
+    }
+    long divisor = 1;
+    while (divisor <= value / 10)
+      divisor *= 10;
+    for (; divisor > 0; divisor /= 10)
+      putByte((byte) ('0' + value / divisor % 10));
+  }
+
+  private void putByte(byte b)
+  {
+    if (length == buffer.length)
+      buffer = Arrays.copyOf(buffer, length * 2);
+    buffer[length++] = b;
+  }
+
+  private void flush() throws IOException
+  {
+    out.write(buffer, 0, length);
+    out.flush();
+    length = 0;
+  }
+
+
+  /*
+   * Name:      stty
+   * Purpose:   Run stty on the controlling terminal.
+   * Return:    what stty printed
+   */
+  private static String stty(String... settings) throws IOException
+  {
+    String[] command = new String[settings.length + 1];
+    command[0] = "stty";
+    System.arraycopy(settings, 0, command, 1, settings.length);
+    Process process = new ProcessBuilder(command)
+        .redirectInput(new File("/dev/tty"))
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+    try (InputStream output = process.getInputStream()) {
+      String printed = new String(output.readAllBytes());
+      if (process.waitFor() != 0)
+        throw new IOException("stty " + String.join(" ", settings) + " failed; is this a terminal?");
+      return printed;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while running stty");
+    }
+  }
+
+  // Rows and columns of the terminal, keeping the defaults if stty cannot tell
+  private void readScreenSize() throws IOException
+  {
+    String[] size = stty("size").trim().split("\\s+");
+    try {
+      if (size.length == 2 && Integer.parseInt(size[0]) > 0 && Integer.parseInt(size[1]) > 0) {
+        screenRows = Integer.parseInt(size[0]);
+        screenCols = Integer.parseInt(size[1]);
+      }
+    } catch (NumberFormatException e) {
+      // Keep the defaults
+    }
+  }
+
+
+  // The method used to process the command line arguments
+  private void processArgs(String[] args)
+  {
+    String inputBoard = null;   // The filename for where to load the Board
+    int boardSize = 10;         // The Size of the Board
+    int ghostCount = 4;         // The number of ghosts on a new Board
+    long seed = new SplittableRandom().nextLong();
+
+    // Arguments must come in pairs
+    if((args.length % 2) != 0)
+    {
+      printUsage();
+      System.exit(-1);
+    }
+
+    try {
+      for(int i = 0; i < args.length; i += 2)
+      {
+        if(args[i].equals("-i"))
+          inputBoard = args[i + 1];
+        else if(args[i].equals("-s"))
+          boardSize = Integer.parseInt(args[i + 1]);
+        else if(args[i].equals("-g"))
+          ghostCount = Integer.parseInt(args[i + 1]);
+        else if(args[i].equals("-x"))
+          seed = Long.parseLong(args[i + 1]);
+        else
+        {   // Incorrect Argument
+          printUsage();
+          System.exit(-1);
+        }
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      System.out.println(e.getMessage());
+      printUsage();
+      System.exit(-1);
+    }
+
+    // Same lower bound on the board size as GuiPacman
+    if(boardSize < 3)
+      boardSize = 10;
+
+    random = new SplittableRandom(seed);
+    if(inputBoard == null)
+    {
+      board = new Board(boardSize, Math.max(ghostCount, 0), random);
+      return;
+    }
+    try {
+      board = new Board(inputBoard);
+      board.setRandom(random);
+    } catch (IOException e) {
+      System.out.println("Could not load " + inputBoard + ": " + e.getMessage());
+      System.exit(-1);
+    }
+  }
+
+  // Print the Usage Message
+  private static void printUsage()
+  {
+    System.out.println("TerminalPacman");
+    System.out.println("Usage:  TerminalPacman [-i file] [-s size] [-g ghosts] [-x seed]");
+    System.out.println();
+    System.out.println("  Command line arguments come in pairs of the form: <command> <argument>");
+    System.out.println();
+    System.out.println("  -i [file]   -> A saved board to play; its size replaces -s.");
+    System.out.println("  -s [size]   -> Side length of a new board. The default is 10.");
+    System.out.println("  -g [ghosts] -> Ghosts on a new board. The default is 4.");
+    System.out.println("  -x [seed]   -> Seeds where cherries appear, so the same moves play the same game.");
+    System.out.println();
+    System.out.println("  Move with the arrow keys or WASD, start a new game with space once the");
+    System.out.println("  game is over, and quit with q. Boards bigger than the terminal scroll");
+    System.out.println("  to follow Pac-Man. Needs a terminal that understands ANSI escapes.");
+  }
+}
@@ -0,0 +1,29 @@
+import jdk.jfr.*;
+
+/**
+ * A JFR event for every tick of the GameLoop: how long it held the board,
+ * the move played and what came of it. Like every JFR event it only
+ * costs something while a recording that enables it is running, e.g.
+ * java -XX:StartFlightRecording:filename=pacman.jfr GuiPacman
+ */
+@Name("pacman.Tick")
+@Label("Tick")
+@Category("Pac-Man")
+@Description("One step of the game loop")
+public class TickEvent extends Event {
+
+    @Label("Tick")
+    long tick;
+
+    @Label("Direction")
+    String direction;
+
+    @Label("Score")
+    int score;
+
+    @Label("Changed Cells")
+    int changedCells;
+
+    @Label("Game Over")
+    boolean gameOver;
+}